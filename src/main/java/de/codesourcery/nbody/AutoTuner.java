@@ -0,0 +1,221 @@
+package de.codesourcery.nbody;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Finds the fastest {@link TuningParameters} for this machine and body count.
+ *
+ * The tuner first lets a simulation run for a couple of steps so that calibration happens on a
+ * realistic body distribution, then takes a snapshot of the bodies and searches one parameter at a time
+ * (opening criterion, thread count, slices per thread), timing a few simulation steps for each candidate
+ * starting from the same snapshot.
+ *
+ * Candidate opening criteria are only considered if the RMS error of the resulting forces
+ * (relative to direct summation on a random sample of bodies) stays within the given bound.
+ * If no bound is given, the error of {@link TuningParameters#DEFAULT_THETA} is used so tuning never
+ * makes the simulation less accurate than the defaults.
+ */
+public final class AutoTuner
+{
+    private static final double[] THETAS = { 0.5 , 0.7 , 1.0 , 1.4 , 2.0 , 2.8 };
+    private static final int[] SLICES_PER_THREAD = { 1 , 2 , 4 , 8 , 16 };
+
+    private static final int SETTLE_STEPS = 10; // steps to run before taking the snapshot
+    private static final int WARMUP_STEPS = 3;
+    private static final int SAMPLE_SIZE = 256; // bodies to compare against direct summation
+
+    private final int bodyCount;
+    private final int calibrationSteps;
+    private double maxForceError;
+
+    private Bodies snapshot;
+    private int[] sample;
+    private double[] exactFX;
+    private double[] exactFY;
+
+    /**
+     * Create tuner.
+     *
+     * @param bodyCount number of bodies to tune for
+     * @param calibrationSteps number of simulation steps to time per candidate
+     * @param maxForceError max. acceptable relative RMS force error, values <= 0 mean 'not worse than the default opening criterion'
+     */
+    public AutoTuner(int bodyCount,int calibrationSteps,double maxForceError)
+    {
+        this.bodyCount = bodyCount;
+        this.calibrationSteps = calibrationSteps;
+        this.maxForceError = maxForceError;
+    }
+
+    public TuningParameters tune()
+    {
+        final TuningParameters defaults = new TuningParameters();
+        System.out.println("Auto-tuning for "+bodyCount+" bodies ...");
+
+        final ExecutorService referencePool = Simulation.newThreadPool( defaults.threadCount );
+        try {
+            final Simulation reference = new Simulation( defaults , bodyCount , Main.SEED , Main.TIME_STEP , referencePool );
+            reference.createBodies( bodyCount );
+            for ( int i = 0 ; i < SETTLE_STEPS ; i++ ) {
+                reference.advanceSimulation();
+            }
+            snapshot = new Bodies( bodyCount );
+            snapshot.copyFrom( reference.bodies , bodyCount );
+        } finally {
+            referencePool.shutdown();
+        }
+        computeExactForces();
+
+        if ( maxForceError <= 0 ) {
+            maxForceError = forceError( TuningParameters.DEFAULT_THETA );
+        }
+        System.out.println( String.format( Locale.ROOT , "Max. force error: %.4f%%" , maxForceError*100 ) );
+
+        // opening criterion
+        final TuningParameters best = new TuningParameters( defaults );
+        double bestTime = Double.MAX_VALUE;
+        for ( double theta : THETAS )
+        {
+            final double error = forceError( theta );
+            if ( error > maxForceError ) {
+                System.out.println( String.format( Locale.ROOT , "theta %.1f: error %.4f%% (rejected)" , theta , error*100 ) );
+                continue;
+            }
+            final TuningParameters candidate = new TuningParameters( best );
+            candidate.theta = theta;
+            final double time = timeSteps( candidate );
+            System.out.println( String.format( Locale.ROOT , "theta %.1f: error %.4f%%, %.2f ms/step" , theta , error*100 , time ) );
+            if ( time < bestTime ) {
+                bestTime = time;
+                best.theta = theta;
+            }
+        }
+
+        // thread count
+        bestTime = Double.MAX_VALUE;
+        for ( int threads : threadCounts() )
+        {
+            final TuningParameters candidate = new TuningParameters( best );
+            candidate.threadCount = threads;
+            final double time = timeSteps( candidate );
+            System.out.println( String.format( Locale.ROOT , "threads %d: %.2f ms/step" , threads , time ) );
+            if ( time < bestTime ) {
+                bestTime = time;
+                best.threadCount = threads;
+            }
+        }
+
+        // force slice granularity
+        bestTime = Double.MAX_VALUE;
+        for ( int slices : SLICES_PER_THREAD )
+        {
+            final TuningParameters candidate = new TuningParameters( best );
+            candidate.slicesPerThread = slices;
+            final double time = timeSteps( candidate );
+            System.out.println( String.format( Locale.ROOT , "slices/thread %d: %.2f ms/step" , slices , time ) );
+            if ( time < bestTime ) {
+                bestTime = time;
+                best.slicesPerThread = slices;
+            }
+        }
+
+        best.bodyCount = bodyCount;
+        System.out.println( String.format( Locale.ROOT , "Best configuration: %s (%.2f ms/step)" , best , bestTime ) );
+        return best;
+    }
+
+    private static List<Integer> threadCounts()
+    {
+        final int cpus = Runtime.getRuntime().availableProcessors();
+        final List<Integer> result = new ArrayList<>();
+        for ( int i = 1 ; i < cpus ; i *= 2 ) {
+            result.add( i );
+        }
+        result.add( cpus );
+        return result;
+    }
+
+    // average time per step in milliseconds
+    private double timeSteps(TuningParameters parameters)
+    {
+        final ExecutorService pool = Simulation.newThreadPool( parameters.threadCount );
+        try
+        {
+            final Simulation simulation = new Simulation( parameters , bodyCount , Main.SEED , Main.TIME_STEP , pool );
+            simulation.bodies.copyFrom( snapshot , bodyCount );
+            for ( int i = 0 ; i < WARMUP_STEPS ; i++ ) {
+                simulation.advanceSimulation();
+            }
+            final long start = System.nanoTime();
+            for ( int i = 0 ; i < calibrationSteps ; i++ ) {
+                simulation.advanceSimulation();
+            }
+            return ( System.nanoTime() - start ) / 1_000_000d / calibrationSteps;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void computeExactForces()
+    {
+        final List<Integer> candidates = new ArrayList<>();
+        for ( int i = 0 ; i < bodyCount ; i++ )
+        {
+            if ( snapshot.isBodyInRegion( i , Main.UNIVERSE_BOUNDS ) ) {
+                candidates.add( i );
+            }
+        }
+
+        final Random rnd = new Random( 42 );
+        final int sampleSize = Math.min( SAMPLE_SIZE , candidates.size() );
+        sample = new int[ sampleSize ];
+        exactFX = new double[ sampleSize ];
+        exactFY = new double[ sampleSize ];
+        for ( int i = 0 ; i < sampleSize ; i++ )
+        {
+            final int body = candidates.remove( rnd.nextInt( candidates.size() ) );
+            sample[i] = body;
+
+            snapshot.resetForce( body );
+            for ( int j = 0 ; j < bodyCount ; j++ )
+            {
+                if ( j != body && snapshot.isBodyInRegion( j , Main.UNIVERSE_BOUNDS ) ) {
+                    snapshot.addForce( body , j );
+                }
+            }
+            exactFX[i] = snapshot.getFX( body );
+            exactFY[i] = snapshot.getFY( body );
+        }
+    }
+
+    // relative RMS force error on the sample bodies
+    private double forceError(double theta)
+    {
+        final BHTree tree = new BHTree( Main.UNIVERSE_BOUNDS );
+        for ( int i = 0 ; i < bodyCount ; i++ )
+        {
+            if ( snapshot.isBodyInRegion( i , Main.UNIVERSE_BOUNDS ) ) {
+                tree.insert( i , snapshot );
+            }
+        }
+        tree.computeCenterOfMass( snapshot );
+
+        double errorSqrd = 0;
+        double forceSqrd = 0;
+        for ( int i = 0 ; i < sample.length ; i++ )
+        {
+            final int body = sample[i];
+            snapshot.resetForce( body );
+            tree.updateForce( body , snapshot , theta*theta );
+            final double dx = snapshot.getFX( body ) - exactFX[i];
+            final double dy = snapshot.getFY( body ) - exactFY[i];
+            errorSqrd += dx*dx + dy*dy;
+            forceSqrd += exactFX[i]*exactFX[i] + exactFY[i]*exactFY[i];
+        }
+        return Math.sqrt( errorSqrd / forceSqrd );
+    }
+}
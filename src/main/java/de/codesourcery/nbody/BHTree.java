@@ -8,14 +8,24 @@ package de.codesourcery.nbody;
  */
 public final class BHTree
 {
+    public interface BodyVisitor
+    {
+        public void visit(int body);
+    }
+
     private final BoundingBox quad;     // square region that the tree represents
 
-    private int body=-1;     // body or aggregate body stored in this node
+    private int body=-1;     // body stored in this node (external nodes only)
     private BHTree NW=null;     // tree representing northwest quadrant
     private BHTree NE=null;     // tree representing northeast quadrant
     private BHTree SW=null;     // tree representing southwest quadrant
     private BHTree SE=null;     // tree representing southeast quadrant
 
+    // total mass and center of mass of all bodies inside the quadrant, see computeCenterOfMass()
+    private double mass;
+    private double comX;
+    private double comY;
+
     //Create and initialize a new bhtree. Initially, all nodes are null and will be filled by recursion
     //Each BHTree represents a quadrant and a body that represents all bodies inside the quadrant
     public BHTree(BoundingBox q) {
@@ -32,6 +42,7 @@ public final class BHTree
         this.NE=null;
         this.SW=null;
         this.SE=null;
+        this.mass=0;
     }
 
     //If all nodes of the BHTree are null, then the quadrant represents a single body and it is "external"
@@ -40,127 +51,251 @@ public final class BHTree
         return this.NW==null && this.NE==null && this.SW ==null && this.SE==null;
     }
 
-    //We have to populate the tree with bodies. We start at the current tree and recursively travel through the branches
+    //We have to populate the tree with bodies. We start at the current tree and recursively travel through the branches.
+    //Only the structure of the tree gets built here, masses and centers of mass are computed
+    //afterwards by computeCenterOfMass().
     public void insert(int b,Bodies bodies)
     {
-        //If there's not a body there already, put the body there.
-        if (this.body==-1) {
-            this.body=b;
-            return;
-        }
-        //If there's already a body there, but it's not an external node
-        //combine the two bodies and figure out which quadrant of the
-        //tree it should be located in. Then recursively update the nodes below it.
-        if ( ! isExternalNode() )
+        if ( isExternalNode() ) 
         {
-            this.body=bodies.sumBodies(this.body,b);
-            if ( bodies.nwContains( b , this.quad ) ) {
-                if (this.NW==null) {
-                    this.NW= new BHTree(this.quad.NW());
-                }
-                this.NW.insert(b,bodies);
+            //If there's not a body there already, put the body there.
+            if (this.body==-1) {
+                this.body=b;
+                return;
             }
-            else
-            {
-                if ( bodies.neContains( b , this.quad ) )
-                {
-                    if (this.NE==null) {
-                        this.NE= new BHTree(this.quad.NE());
-                    }
-                    this.NE.insert(b,bodies);
-                }
-                else
-                {
-                    if ( bodies.seContains( b , this.quad ) ) {
-                        if (this.SE==null) {
-                            this.SE= new BHTree(this.quad.SE());
-                        }
-                        this.SE.insert(b,bodies);
-                    }
-                    else
-                    {
-                        if(this.SW==null) {
-                            this.SW= new BHTree(this.quad.SW());
-                        }
-                        this.SW.insert(b,bodies);
-                    }
-                }
-            }
-            return;
+            //If the node is external and contains another body, move
+            //that body down to the quadrant where it belongs, the node
+            //becomes an internal node
+            final int c = this.body;
+            this.body = -1;
+            insertIntoQuadrant(c,bodies);
         }
-        
-        //If the node is external and contains another body, create BHTrees
-        //where the bodies should go, update the node, and end
-        //(do not do anything recursively)
-        final int c = this.body;
-        if ( bodies.nwContains(c , this.quad ) )
+        insertIntoQuadrant(b,bodies);
+    }
+
+    //figure out which quadrant of the tree the body should be located in and insert it there
+    private void insertIntoQuadrant(int b,Bodies bodies) 
+    {
+        if ( bodies.nwContains( b , this.quad ) ) 
         {
             if (this.NW==null) {
                 this.NW= new BHTree(this.quad.NW());
             }
-            this.NW.insert(c,bodies);
+            this.NW.insert(b,bodies);
         }
         else
         {
-            if ( bodies.neContains( c , this.quad ) )
+            if ( bodies.neContains( b , this.quad ) )
             {
                 if (this.NE==null) {
                     this.NE= new BHTree(this.quad.NE());
                 }
-                this.NE.insert(c,bodies);
+                this.NE.insert(b,bodies);
             }
             else
             {
-                if ( bodies.seContains( c , this.quad ) )
+                if ( bodies.seContains( b , this.quad ) ) 
                 {
                     if (this.SE==null) {
                         this.SE= new BHTree(this.quad.SE());
                     }
-                    this.SE.insert(c,bodies);
+                    this.SE.insert(b,bodies);
                 }
-                else {
+                else
+                {
                     if(this.SW==null) {
                         this.SW= new BHTree(this.quad.SW());
                     }
-                    this.SW.insert(c,bodies);
+                    this.SW.insert(b,bodies);
                 }
             }
         }
-        this.insert(b,bodies);
+    }
+
+    //Compute total mass and center of mass of every node in one bottom-up pass,
+    //must be called after all bodies have been inserted
+    public void computeCenterOfMass(Bodies bodies)
+    {
+        if ( isExternalNode() )
+        {
+            if ( this.body != -1 ) 
+            {
+                this.mass = bodies.getMass( this.body );
+                this.comX = bodies.getX( this.body );
+                this.comY = bodies.getY( this.body );
+            }
+            return;
+        }
+
+        double m = 0;
+        double mx = 0;
+        double my = 0;
+        if ( this.NW != null ) {
+            this.NW.computeCenterOfMass(bodies);
+            m += this.NW.mass;
+            mx += this.NW.comX * this.NW.mass;
+            my += this.NW.comY * this.NW.mass;
+        }
+
+        if ( this.SW != null ) {
+            this.SW.computeCenterOfMass(bodies);
+            m += this.SW.mass;
+            mx += this.SW.comX * this.SW.mass;
+            my += this.SW.comY * this.SW.mass;
+        }
+
+        if ( this.SE != null ) {
+            this.SE.computeCenterOfMass(bodies);
+            m += this.SE.mass;
+            mx += this.SE.comX * this.SE.mass;
+            my += this.SE.comY * this.SE.mass;
+        }
+
+        if ( this.NE != null ) {
+            this.NE.computeCenterOfMass(bodies);
+            m += this.NE.mass;
+            mx += this.NE.comX * this.NE.mass;
+            my += this.NE.comY * this.NE.mass;
+        }
+        this.mass = m;
+        this.comX = mx / m;
+        this.comY = my / m;
     }
     
     //Start at the main node of the tree. Then, recursively go each branch
     //Until either we reach an external node or we reach a node that is sufficiently
-    //far away that the external nodes would not matter much.
-    public void updateForce(int b,Bodies bodies)
+    //far away that the external nodes would not matter much (size/distance < theta).
+    public void updateForce(int b,Bodies bodies,double thetaSqrd)
     {
         if ( isExternalNode() )
         {
-            if (this.body!=b) {
+            if (this.body!=b && this.body!=-1) {
                 bodies.addForce( b , this.body );
             }
             return;
         }
-        if ( this.quad.sizeSqrd() / ( bodies.distanceToSqrd( b ,  this.body ) ) < 2*2)
+        if ( this.quad.sizeSqrd() / ( bodies.distanceToSqrd( b , this.comX , this.comY ) ) < thetaSqrd)
         {
-            bodies.addForce( b , this.body );
+            bodies.addForce( b , this.comX , this.comY , this.mass );
             return;
         }
         
         if ( this.NW != null ) {
-            this.NW.updateForce(b,bodies);
+            this.NW.updateForce(b,bodies,thetaSqrd);
         }
 
         if ( this.SW != null ) {
-            this.SW.updateForce(b,bodies);
+            this.SW.updateForce(b,bodies,thetaSqrd);
         }
 
         if ( this.SE != null ) {
-            this.SE.updateForce(b,bodies);
+            this.SE.updateForce(b,bodies,thetaSqrd);
         }
 
         if ( this.NE != null ) {
-            this.NE.updateForce(b,bodies);
+            this.NE.updateForce(b,bodies,thetaSqrd);
         }    
     }    
-}
\ No newline at end of file
+
+    //Same traversal as updateForce() but also sums up the potential energy between the body and
+    //all (aggregate) bodies it interacts with.
+    public double updateForceAndPotential(int b,Bodies bodies,double thetaSqrd)
+    {
+        if ( isExternalNode() )
+        {
+            if (this.body!=b && this.body!=-1) {
+                return bodies.addForceAndPotential( b , this.body );
+            }
+            return 0;
+        }
+        if ( this.quad.sizeSqrd() / ( bodies.distanceToSqrd( b , this.comX , this.comY ) ) < thetaSqrd)
+        {
+            return bodies.addForceAndPotential( b , this.comX , this.comY , this.mass );
+        }
+
+        double potential = 0;
+        if ( this.NW != null ) {
+            potential += this.NW.updateForceAndPotential(b,bodies,thetaSqrd);
+        }
+
+        if ( this.SW != null ) {
+            potential += this.SW.updateForceAndPotential(b,bodies,thetaSqrd);
+        }
+
+        if ( this.SE != null ) {
+            potential += this.SE.updateForceAndPotential(b,bodies,thetaSqrd);
+        }
+
+        if ( this.NE != null ) {
+            potential += this.NE.updateForceAndPotential(b,bodies,thetaSqrd);
+        }
+        return potential;
+    }
+
+    //Visit all nodes that intersect the viewport. Nodes smaller than minNodeSize are not descended into,
+    //their center of mass is visited instead of the individual bodies below it.
+    public <T> void visit(BoundingBox viewport,double minNodeSize,Bodies bodies,Bodies.PointsVisitor<T> v,T data)
+    {
+        if ( this.mass == 0 || ! this.quad.intersects( viewport ) ) {
+            return;
+        }
+        if ( isExternalNode() )
+        {
+            bodies.visitBody( this.body , v , data );
+            return;
+        }
+        if ( this.quad.size() < minNodeSize )
+        {
+            v.visit( this.comX , this.comY , data );
+            return;
+        }
+
+        if ( this.NW != null ) {
+            this.NW.visit(viewport,minNodeSize,bodies,v,data);
+        }
+
+        if ( this.SW != null ) {
+            this.SW.visit(viewport,minNodeSize,bodies,v,data);
+        }
+
+        if ( this.SE != null ) {
+            this.SE.visit(viewport,minNodeSize,bodies,v,data);
+        }
+
+        if ( this.NE != null ) {
+            this.NE.visit(viewport,minNodeSize,bodies,v,data);
+        }
+    }
+
+    //Visit all bodies within the given radius around a point. The tree is only used as an index here,
+    //positions are taken from the bodies themselves.
+    public void visitNeighbors(double x,double y,double radiusSqrd,Bodies bodies,BodyVisitor v)
+    {
+        if ( this.mass == 0 || this.quad.distanceSqrd( x , y ) > radiusSqrd ) {
+            return;
+        }
+        if ( isExternalNode() )
+        {
+            if ( bodies.distanceToSqrd( this.body , x , y ) <= radiusSqrd ) {
+                v.visit( this.body );
+            }
+            return;
+        }
+
+        if ( this.NW != null ) {
+            this.NW.visitNeighbors(x,y,radiusSqrd,bodies,v);
+        }
+
+        if ( this.SW != null ) {
+            this.SW.visitNeighbors(x,y,radiusSqrd,bodies,v);
+        }
+
+        if ( this.SE != null ) {
+            this.SE.visitNeighbors(x,y,radiusSqrd,bodies,v);
+        }
+
+        if ( this.NE != null ) {
+            this.NE.visitNeighbors(x,y,radiusSqrd,bodies,v);
+        }
+    }
+}
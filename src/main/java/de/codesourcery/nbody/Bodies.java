@@ -12,8 +12,8 @@ public final class Bodies
     
     public static final double SOLAR_MASS=1.98892e30;
 
-    public static final int TMP_BODIES_FACTOR = 15; // how much space to reserve for temporary bodies created while constructing the BH tree
-    
+    public static final double EPS = 3E4;      // softening parameter (just to avoid infinities)
+
     private static final int PART_COUNT = 7;
 
     private static final int X  = 0;
@@ -27,21 +27,17 @@ public final class Bodies
     private final double[] parts;
     public final int maxBodies;
 
-    protected int tmpBufferIdx;
-
     public final Object[] LOCKS;
     
     public Bodies(int count)
     {
     	this.maxBodies = count;
-        this.tmpBufferIdx = count;
         
-        final int totalCount = count*TMP_BODIES_FACTOR;
-        this.parts = new double[ totalCount * PART_COUNT ];
-        final int size = (totalCount*PART_COUNT*8)/1024/1024;
+        this.parts = new double[ count * PART_COUNT ];
+        final int size = (count*PART_COUNT*8)/1024/1024;
         System.out.println("Bodies occupy "+size+" MB");
-        this.LOCKS = new Object[ totalCount ];
-        for ( int i = 0 ; i < totalCount ; i++ ) {
+        this.LOCKS = new Object[ count ];
+        for ( int i = 0 ; i < count ; i++ ) {
             LOCKS[i] = new Object();
         }
     }
@@ -51,9 +47,9 @@ public final class Bodies
         public abstract void visit(double x,double y,T data);
     }
 
-    public void resetTempBuffer()
-    {
-        tmpBufferIdx = maxBodies;
+    // copy the first count bodies from another instance
+    public void copyFrom(Bodies other,int count) {
+        System.arraycopy( other.parts , 0 , this.parts , 0 , count * PART_COUNT );
     }
 
     public <T> void visit(int count,PointsVisitor<T> v,T data) {
@@ -64,6 +60,11 @@ public final class Bodies
         }
     }
 
+    public <T> void visitBody(int index,PointsVisitor<T> v,T data) {
+        final int offset = index * PART_COUNT;
+        v.visit( parts[ offset + X ] , parts[ offset + Y ] , data );
+    }
+
     public boolean isBodyInRegion(int body,BoundingBox q)
     {
         final int offset = body*PART_COUNT;
@@ -81,44 +82,41 @@ public final class Bodies
         parts[idx + MASS ] = mass;
     }
 
-    public int sumBodies(int a,int b)
+    // merge body b into body a, conserving mass and momentum
+    public void merge(int a,int b)
     {
         final int offsetA = a*PART_COUNT;
         final int offsetB = b*PART_COUNT;
 
-        final double bodyAx = parts[ offsetA + X ];
-        final double bodyBx = parts[ offsetB + X ];
-
-        final double bodyAy = parts[ offsetA + Y ];
-        final double bodyBy = parts[ offsetB + Y ];
-
-        final double bodyAmass = parts[ offsetA + MASS ];
-        final double bodyBmass = parts[ offsetB + MASS ];
-
-        double mass = bodyAmass + bodyBmass;
+        final double massA = parts[ offsetA + MASS ];
+        final double massB = parts[ offsetB + MASS ];
+        final double mass = massA + massB;
+
+        parts[ offsetA + X ] = ( parts[ offsetA + X ] * massA + parts[ offsetB + X ] * massB ) / mass;
+        parts[ offsetA + Y ] = ( parts[ offsetA + Y ] * massA + parts[ offsetB + Y ] * massB ) / mass;
+        parts[ offsetA + VX ] = ( parts[ offsetA + VX ] * massA + parts[ offsetB + VX ] * massB ) / mass;
+        parts[ offsetA + VY ] = ( parts[ offsetA + VY ] * massA + parts[ offsetB + VY ] * massB ) / mass;
+        parts[ offsetA + FX ] = 0;
+        parts[ offsetA + FY ] = 0;
+        parts[ offsetA + MASS ] = mass;
+    }
 
-        double rx = (bodyAx * bodyAmass + bodyBx * bodyBmass) / mass;
-        double ry = (bodyAy * bodyAmass + bodyBy * bodyBmass) / mass;
-        return add( rx , ry , 0 , 0 , mass );
+    public void copy(int from,int to) {
+        System.arraycopy( parts , from * PART_COUNT , parts , to * PART_COUNT , PART_COUNT );
     }
 
-    public int add(double px,double  py,double  vx,double  vy,double  mass)
+    // copies X,Y,VX,VY of the given bodies into consecutive blocks of the destination array (all X values first, then all Y values, ...)
+    public void copyState(int[] indices,double[] dst)
     {
-        final int idx = tmpBufferIdx;
-        final int offset = idx* PART_COUNT;
-        tmpBufferIdx++;
-        try {
-            parts[offset + X ] = px;
-            parts[offset + Y ] = py;
-            parts[offset + VX ] = vx;
-            parts[offset + VY ] = vy;
-            parts[offset + FX ] = 0;
-            parts[offset + FY ] = 0;
-            parts[offset + MASS ] = mass;
-        } catch(ArrayIndexOutOfBoundsException e) {
-            throw new ArrayIndexOutOfBoundsException("Out of space for temporary Body instances, increase TMP_BODIES_FACTOR: "+e.getMessage());
+        final int count = indices.length;
+        for ( int i = 0 ; i < count ; i++ )
+        {
+            final int offset = indices[i] * PART_COUNT;
+            dst[ i ] = parts[ offset + X ];
+            dst[ i + count ] = parts[ offset + Y ];
+            dst[ i + 2*count ] = parts[ offset + VX ];
+            dst[ i + 3*count ] = parts[ offset + VY ];
         }
-        return idx;
     }
 
     public void resetForce(int index) 
@@ -152,18 +150,91 @@ public final class Bodies
 
     public void addForce(int bodyToAddTo,int bodyToAdd)
     {
-        final double EPS = 3E4;      // softening parameter (just to avoid infinities)
+        final int offsetB = bodyToAdd * PART_COUNT;
+        final int offsetThis = bodyToAddTo * PART_COUNT;
 
+        double dx = parts[ offsetB + X ] - parts[ offsetThis + X ];
+        double dy = parts[ offsetB + Y ] - parts[ offsetThis + Y ];
+        double softDist = Math.sqrt(dx*dx + dy*dy + EPS*EPS);
+        double F = (G * parts[ offsetThis + MASS ] * parts[ offsetB + MASS ] ) / (softDist*softDist*softDist);
+
+        parts[ offsetThis + FX ] += F * dx;
+        parts[ offsetThis + FY ] += F * dy;
+    }
+
+    // add force exerted by a (aggregate) mass at the given position
+    public void addForce(int bodyToAddTo,double x,double y,double mass)
+    {
+        final int offsetThis = bodyToAddTo * PART_COUNT;
+
+        double dx = x - parts[ offsetThis + X ];
+        double dy = y - parts[ offsetThis + Y ];
+        double softDist = Math.sqrt(dx*dx + dy*dy + EPS*EPS);
+        double F = (G * parts[ offsetThis + MASS ] * mass ) / (softDist*softDist*softDist);
+
+        parts[ offsetThis + FX ] += F * dx;
+        parts[ offsetThis + FY ] += F * dy;
+    }
+
+    // same as addForce() but also returns the (softened) potential energy of the pair, the force is exactly its gradient
+    public double addForceAndPotential(int bodyToAddTo,int bodyToAdd)
+    {
         final int offsetB = bodyToAdd * PART_COUNT;
         final int offsetThis = bodyToAddTo * PART_COUNT;
 
         double dx = parts[ offsetB + X ] - parts[ offsetThis + X ];
         double dy = parts[ offsetB + Y ] - parts[ offsetThis + Y ];
-        double dist = Math.sqrt(dx*dx + dy*dy);
-        double F = (G * parts[ offsetThis + MASS ] * parts[ offsetB + MASS ] ) / (dist*dist + EPS*EPS);
+        double softDist = Math.sqrt(dx*dx + dy*dy + EPS*EPS);
+        double GMM = G * parts[ offsetThis + MASS ] * parts[ offsetB + MASS ];
+        double F = GMM / (softDist*softDist*softDist);
 
-        parts[ offsetThis + FX ] += F * dx/dist;
-        parts[ offsetThis + FY ] += F * dy/dist;
+        parts[ offsetThis + FX ] += F * dx;
+        parts[ offsetThis + FY ] += F * dy;
+        return -GMM / softDist;
+    }
+
+    // same as addForce(int,double,double,double) but also returns the (softened) potential energy of the pair, the force is exactly its gradient
+    public double addForceAndPotential(int bodyToAddTo,double x,double y,double mass)
+    {
+        final int offsetThis = bodyToAddTo * PART_COUNT;
+
+        double dx = x - parts[ offsetThis + X ];
+        double dy = y - parts[ offsetThis + Y ];
+        double softDist = Math.sqrt(dx*dx + dy*dy + EPS*EPS);
+        double GMM = G * parts[ offsetThis + MASS ] * mass;
+        double F = GMM / (softDist*softDist*softDist);
+
+        parts[ offsetThis + FX ] += F * dx;
+        parts[ offsetThis + FY ] += F * dy;
+        return -GMM / softDist;
+    }
+
+    public double getX(int index) {
+        return parts[ index * PART_COUNT + X ];
+    }
+
+    public double getY(int index) {
+        return parts[ index * PART_COUNT + Y ];
+    }
+
+    public double getVX(int index) {
+        return parts[ index * PART_COUNT + VX ];
+    }
+
+    public double getVY(int index) {
+        return parts[ index * PART_COUNT + VY ];
+    }
+
+    public double getFX(int index) {
+        return parts[ index * PART_COUNT + FX ];
+    }
+
+    public double getFY(int index) {
+        return parts[ index * PART_COUNT + FY ];
+    }
+
+    public double getMass(int index) {
+        return parts[ index * PART_COUNT + MASS ];
     }
 
     public double distanceToSqrd(int b,int thisIndex)
@@ -177,6 +248,16 @@ public final class Bodies
         return dx*dx + dy*dy;
     }
 
+    public double distanceToSqrd(int b,double x,double y)
+    {
+        final int offsetB = b * PART_COUNT;
+
+        double dx = x - parts[ offsetB + X ];
+        double dy = y - parts[ offsetB + Y ];
+
+        return dx*dx + dy*dy;
+    }
+
     public boolean neContains(int b , BoundingBox q)
     {
         final int offset = b*PART_COUNT;
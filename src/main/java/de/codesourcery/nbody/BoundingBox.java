@@ -49,6 +49,19 @@ public final class BoundingBox {
         return x >= xmin && x <= xmax && y >= ymin && y <= ymax;
     }
 
+    public boolean intersects(BoundingBox other)
+    {
+        return other.xmax >= xmin && other.xmin <= xmax && other.ymax >= ymin && other.ymin <= ymax;
+    }
+
+    // squared distance between a point and the closest point inside this box (0 if the box contains the point)
+    public double distanceSqrd(double x,double y)
+    {
+        final double dx = x < xmin ? xmin - x : x > xmax ? x - xmax : 0;
+        final double dy = y < ymin ? ymin - y : y > ymax ? y - ymax : 0;
+        return dx*dx + dy*dy;
+    }
+
     public BoundingBox NW() {
         return new BoundingBox(this.xmin , this.ymin , xmid , ymid );
     }
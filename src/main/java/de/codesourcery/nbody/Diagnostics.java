@@ -0,0 +1,110 @@
+package de.codesourcery.nbody;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Conserved quantities (energy, linear and angular momentum) of the simulation,
+ * sampled every <code>interval</code> steps and written as a CSV time series.
+ *
+ * The potential energy is computed while traversing the BH tree during the force pass
+ * (see {@link BHTree#updateForceAndPotential(int, Bodies, double)}) so it comes almost for free.
+ *
+ * Each force slice accumulates into its own section of the sums array,
+ * {@link #begin(int)} must be called before and {@link #finish(long, double, int)} after the force pass.
+ */
+public final class Diagnostics
+{
+    private static final int KINETIC = 0;
+    private static final int POTENTIAL = 1;
+    private static final int MOMENTUM_X = 2;
+    private static final int MOMENTUM_Y = 3;
+    private static final int ANGULAR_MOMENTUM = 4;
+
+    private static final int STRIDE = 8; // 8 doubles = 64 bytes, avoid false sharing between slices
+
+    private final int interval;
+    private final PrintStream out;
+
+    private double[] sums = new double[0];
+    private double initialEnergy = Double.NaN;
+    private double drift = Double.NaN;
+
+    public Diagnostics(int interval,PrintStream out)
+    {
+        if ( interval < 1 ) {
+            throw new IllegalArgumentException("Diagnostics interval must be >= 1");
+        }
+        this.interval = interval;
+        this.out = out;
+        out.println("step,time,bodies,kinetic,potential,total,drift,momentum_x,momentum_y,angular_momentum,virial_ratio");
+    }
+
+    /**
+     * Returns the relative change of the total energy between the first and the most recent sample.
+     */
+    public double getDrift() {
+        return drift;
+    }
+
+    /**
+     * Forget the reference energy, the next sample starts a new drift series (call when the bodies got re-created).
+     */
+    public void reset()
+    {
+        initialEnergy = Double.NaN;
+        drift = Double.NaN;
+    }
+
+    public boolean isDue(long step) {
+        return ( step % interval ) == 0;
+    }
+
+    public void begin(int sliceCount)
+    {
+        if ( sums.length < sliceCount*STRIDE ) {
+            sums = new double[ sliceCount*STRIDE ];
+        } else {
+            Arrays.fill( sums , 0 );
+        }
+    }
+
+    // must be invoked before the body's velocity gets updated so that positions and velocities are sampled at the same time
+    public void accumulate(int slice,int body,Bodies bodies,double potential)
+    {
+        final double x = bodies.getX( body );
+        final double y = bodies.getY( body );
+        final double vx = bodies.getVX( body );
+        final double vy = bodies.getVY( body );
+        final double mass = bodies.getMass( body );
+
+        final int offset = slice*STRIDE;
+        sums[ offset + KINETIC ] += 0.5 * mass * ( vx*vx + vy*vy );
+        sums[ offset + POTENTIAL ] += 0.5 * potential; // every pair gets visited twice
+        sums[ offset + MOMENTUM_X ] += mass * vx;
+        sums[ offset + MOMENTUM_Y ] += mass * vy;
+        sums[ offset + ANGULAR_MOMENTUM ] += mass * ( x*vy - y*vx );
+    }
+
+    public void finish(long step,double time,int bodyCount)
+    {
+        double kinetic = 0, potential = 0, px = 0, py = 0, lz = 0;
+        for ( int offset = 0 ; offset < sums.length ; offset += STRIDE )
+        {
+            kinetic += sums[ offset + KINETIC ];
+            potential += sums[ offset + POTENTIAL ];
+            px += sums[ offset + MOMENTUM_X ];
+            py += sums[ offset + MOMENTUM_Y ];
+            lz += sums[ offset + ANGULAR_MOMENTUM ];
+        }
+        final double total = kinetic + potential;
+        if ( Double.isNaN( initialEnergy ) ) {
+            initialEnergy = total;
+        }
+        drift = ( total - initialEnergy ) / Math.abs( initialEnergy );
+        final double virialRatio = 2 * kinetic / Math.abs( potential );
+        out.println( String.format( Locale.ROOT , "%d,%e,%d,%e,%e,%e,%e,%e,%e,%e,%f" ,
+                step , time , bodyCount , kinetic , potential , total , drift , px , py , lz , virialRatio ) );
+    }
+}
@@ -0,0 +1,263 @@
+package de.codesourcery.nbody;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Runs many independent simulations in one JVM, sharing a single thread pool.
+ *
+ * Every simulation step is a task on the shared pool that re-submits itself until the run is complete,
+ * so steps of all runs get interleaved and small runs fill cores that large runs can't keep busy.
+ * Runs with enough bodies additionally split their force calculation across the pool
+ * (see {@link Simulation}).
+ *
+ * Each run is described by a comma-separated list of <code>key=value</code> pairs, supported keys are
+ * <code>seed</code>, <code>bodies</code>, <code>dt</code>, <code>steps</code>, <code>theta</code> and <code>merge</code> (merge radius).
+ */
+public final class Ensemble
+{
+    private static final int MIN_BODIES_PER_THREAD = 2000; // runs with fewer bodies per thread don't split their force calculation
+
+    private final List<Run> runs = new ArrayList<>();
+    private final int threadCount;
+
+    private final ExecutorService threadPool;
+    private CountDownLatch finished;
+
+    public static final class RunSpec
+    {
+        public long seed = Main.SEED;
+        public int bodies = 2000;
+        public double dt = Main.TIME_STEP;
+        public int steps = 500;
+        public double theta = TuningParameters.DEFAULT_THETA;
+        public double mergeRadius = 0;
+
+        public static RunSpec parse(String spec)
+        {
+            final RunSpec result = new RunSpec();
+            for ( String pair : spec.split(",") )
+            {
+                final String[] keyValue = pair.trim().split("=");
+                if ( keyValue.length != 2 ) {
+                    throw new IllegalArgumentException("Malformed run specification: "+spec);
+                }
+                final String value = keyValue[1].trim();
+                try
+                {
+                    switch( keyValue[0].trim().toLowerCase() )
+                    {
+                        case "seed":   result.seed = Long.parseLong( value ); break;
+                        case "bodies": result.bodies = Integer.parseInt( value ); break;
+                        case "dt":     result.dt = Double.parseDouble( value ); break;
+                        case "steps":  result.steps = Integer.parseInt( value ); break;
+                        case "theta":  result.theta = Double.parseDouble( value ); break;
+                        case "merge":  result.mergeRadius = Double.parseDouble( value ); break;
+                        default:
+                            throw new IllegalArgumentException("Unknown key '"+keyValue[0]+"' in run specification: "+spec);
+                    }
+                }
+                catch(NumberFormatException e) {
+                    throw new IllegalArgumentException("Malformed value for '"+keyValue[0].trim()+"' in run specification: "+spec);
+                }
+            }
+            if ( result.bodies < 1 ) {
+                throw new IllegalArgumentException("bodies must be >= 1 in run specification: "+spec);
+            }
+            if ( result.steps < 1 ) {
+                throw new IllegalArgumentException("steps must be >= 1 in run specification: "+spec);
+            }
+            if ( ! ( result.dt > 0 ) || Double.isInfinite( result.dt ) ) {
+                throw new IllegalArgumentException("dt must be > 0 in run specification: "+spec);
+            }
+            if ( ! ( result.theta > 0 ) || Double.isInfinite( result.theta ) ) {
+                throw new IllegalArgumentException("theta must be > 0 in run specification: "+spec);
+            }
+            if ( ! ( result.mergeRadius >= 0 ) || Double.isInfinite( result.mergeRadius ) ) {
+                throw new IllegalArgumentException("merge must be >= 0 in run specification: "+spec);
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "seed="+seed+",bodies="+bodies+",dt="+dt+",steps="+steps+",theta="+theta+",merge="+mergeRadius;
+        }
+    }
+
+    private final class Run
+    {
+        public final int id;
+        public final RunSpec spec;
+        public final Simulation simulation;
+
+        public long startNanos;
+        public long endNanos;
+        public int stepsDone;
+        public int bodiesLeft;
+        public long bodySteps; // sum of bodies actually advanced in each step
+        public Throwable error;
+
+        public Run(int id,RunSpec spec)
+        {
+            this.id = id;
+            this.spec = spec;
+
+            final TuningParameters parameters = new TuningParameters();
+            parameters.threadCount = Math.max( 1 , Math.min( threadCount , spec.bodies / MIN_BODIES_PER_THREAD ) );
+            parameters.theta = spec.theta;
+            this.simulation = new Simulation( parameters , spec.bodies , spec.seed , spec.dt , threadPool );
+            this.simulation.mergeRadius = spec.mergeRadius;
+        }
+
+        public void step()
+        {
+            try
+            {
+                if ( stepsDone == 0 ) {
+                    startNanos = System.nanoTime();
+                }
+                bodiesLeft = simulation.advanceSimulation();
+                bodySteps += bodiesLeft;
+                stepsDone++;
+                if ( stepsDone < spec.steps ) {
+                    threadPool.execute( this::step );
+                    return;
+                }
+            }
+            catch(Throwable t) {
+                error = t;
+            }
+            endNanos = System.nanoTime();
+            finished.countDown();
+        }
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        final List<RunSpec> specs = new ArrayList<>();
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        int diagnosticsInterval = 0;
+        File diagnosticsDir = null;
+        for ( int i = 0 ; i < args.length ; i++ )
+        {
+            switch( args[i].toLowerCase() )
+            {
+                case "--run":
+                    specs.add( RunSpec.parse( args[i+1] ) );
+                    i++;
+                    break;
+                case "--runs":
+                    for ( String line : Files.readAllLines( new File( args[i+1] ).toPath() , StandardCharsets.UTF_8 ) )
+                    {
+                        if ( ! line.trim().isEmpty() && ! line.trim().startsWith("#") ) {
+                            specs.add( RunSpec.parse( line ) );
+                        }
+                    }
+                    i++;
+                    break;
+                case "--threads":
+                    threadCount = Integer.parseInt( args[i+1] );
+                    i++;
+                    break;
+                case "--diagnostics":
+                    diagnosticsInterval = Integer.parseInt( args[i+1] );
+                    i++;
+                    break;
+                case "--diagnostics-dir":
+                    diagnosticsDir = new File( args[i+1] );
+                    i++;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: "+args[i]);
+            }
+        }
+        if ( specs.isEmpty() ) {
+            System.err.println("Usage: --run <spec> [--run <spec> ...] | --runs <file> [--threads <count>] [--diagnostics <interval>] [--diagnostics-dir <dir>]");
+            System.err.println("       <spec> is a comma-separated list of seed=<long>,bodies=<int>,dt=<double>,steps=<int>,theta=<double>,merge=<double>");
+            System.exit(1);
+        }
+        new Ensemble( specs , threadCount , diagnosticsInterval , diagnosticsDir ).run();
+    }
+
+    /**
+     * Create ensemble.
+     *
+     * @param specs runs to perform
+     * @param threadCount size of the shared thread pool
+     * @param diagnosticsInterval interval for sampling {@link Diagnostics}, values <= 0 mean 'first and last step only'
+     * @param diagnosticsDir directory to write per-run diagnostics CSV files to, <code>null</code> to only report the energy drift
+     */
+    public Ensemble(List<RunSpec> specs,int threadCount,int diagnosticsInterval,File diagnosticsDir) throws IOException
+    {
+        this.threadCount = threadCount;
+        this.threadPool = Simulation.newThreadPool( threadCount , new LinkedBlockingQueue<>() );
+
+        for ( RunSpec spec : specs )
+        {
+            final Run run = new Run( runs.size() , spec );
+            final int interval = diagnosticsInterval > 0 ? diagnosticsInterval : Math.max( 1 , spec.steps - 1 );
+            final PrintStream out;
+            if ( diagnosticsDir != null ) {
+                diagnosticsDir.mkdirs();
+                out = new PrintStream( new FileOutputStream( new File( diagnosticsDir , "run-"+run.id+".csv" ) ) , true );
+            } else {
+                out = new PrintStream( new OutputStream() {
+                    @Override
+                    public void write(int b) { /* discard */ }
+                });
+            }
+            run.simulation.diagnostics = new Diagnostics( interval , out );
+            run.simulation.createBodies( spec.bodies );
+            runs.add( run );
+        }
+    }
+
+    public void run()
+    {
+        System.out.println("Running "+runs.size()+" simulations on "+threadCount+" threads ...");
+        finished = new CountDownLatch( runs.size() );
+        final long start = System.nanoTime();
+        for ( Run run : runs ) {
+            threadPool.execute( run::step );
+        }
+        try {
+            finished.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        final long elapsedNanos = System.nanoTime() - start;
+        threadPool.shutdown();
+
+        long bodySteps = 0;
+        System.out.println( String.format( Locale.ROOT , "%4s %8s %13s %8s %10s %10s %8s %8s %13s  %s" ,
+                "run" , "bodies" , "dt" , "steps" , "time [ms]" , "ms/step" , "left" , "merged" , "energy drift" , "seed" ) );
+        for ( Run run : runs )
+        {
+            if ( run.error != null )
+            {
+                System.out.println( String.format( Locale.ROOT , "%4d FAILED after %d steps (%s): %s" , run.id , run.stepsDone , run.spec , run.error ) );
+                continue;
+            }
+            final double millis = ( run.endNanos - run.startNanos ) / 1_000_000d;
+            bodySteps += run.bodySteps;
+            System.out.println( String.format( Locale.ROOT , "%4d %8d %13e %8d %10.0f %10.2f %8d %8d %13e  %d" ,
+                    run.id , run.spec.bodies , run.spec.dt , run.stepsDone , millis , millis / run.stepsDone ,
+                    run.bodiesLeft , run.simulation.getMergeCount() , run.simulation.diagnostics.getDrift() , run.spec.seed ) );
+        }
+        final double seconds = elapsedNanos / 1e9;
+        System.out.println( String.format( Locale.ROOT , "Total: %d runs, %d body-steps in %.2f s (%.0f body-steps/s)" ,
+                runs.size() , bodySteps , seconds , bodySteps / seconds ) );
+    }
+}
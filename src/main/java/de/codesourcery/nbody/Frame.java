@@ -0,0 +1,45 @@
+package de.codesourcery.nbody;
+
+/**
+ * Snapshot of all body positions, quantized to 16-bit screen-space coordinates
+ * covering {@link Main#UNIVERSE_BOUNDS}.
+ *
+ * Frames are immutable once captured so they can be shared by all client connections of a {@link SnapshotServer}.
+ */
+public final class Frame
+{
+    public static final int MAX_COORDINATE = 0xfffe; // largest coordinate of a body inside the universe
+
+    public static final char OUTSIDE = 0xffff; // marks bodies that left the universe
+
+    public final long sequence;
+    public final int bodyCount;
+    public final char[] x;
+    public final char[] y;
+
+    public Frame(long sequence,char[] x,char[] y,int bodyCount)
+    {
+        this.sequence = sequence;
+        this.bodyCount = bodyCount;
+        this.x = x;
+        this.y = y;
+    }
+
+    public static Frame capture(long sequence,Bodies bodies,int bodyCount)
+    {
+        final char[] x = new char[ bodyCount ];
+        final char[] y = new char[ bodyCount ];
+        final double scale = MAX_COORDINATE / (2*Main.UNIVERSE_SIZE);
+        for ( int i = 0 ; i < bodyCount ; i++ )
+        {
+            if ( bodies.isBodyInRegion( i , Main.UNIVERSE_BOUNDS ) )
+            {
+                x[i] = (char) Math.round( ( bodies.getX( i ) + Main.UNIVERSE_SIZE ) * scale );
+                y[i] = (char) Math.round( ( bodies.getY( i ) + Main.UNIVERSE_SIZE ) * scale );
+            } else {
+                x[i] = y[i] = OUTSIDE;
+            }
+        }
+        return new Frame( sequence , x , y , bodyCount );
+    }
+}
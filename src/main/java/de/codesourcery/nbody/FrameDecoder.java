@@ -0,0 +1,145 @@
+package de.codesourcery.nbody;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads {@link Frame}s written by a {@link FrameEncoder}.
+ *
+ * Instances are not thread-safe.
+ */
+public final class FrameDecoder
+{
+    private final Inflater inflater = new Inflater();
+
+    private byte[] compressed = new byte[1024];
+    private byte[] raw = new byte[0];
+    private final byte[] overflow = new byte[1]; // used to detect frames inflating to more than expected
+    private int rawIdx;
+    private int rawLength;
+
+    private Frame previous;
+    private long bytesRead;
+
+    public void readHeader(DataInputStream in) throws IOException
+    {
+        final int magic = in.readInt();
+        final int version = in.readInt();
+        if ( magic != FrameEncoder.MAGIC || version != FrameEncoder.VERSION ) {
+            throw new IOException("Unsupported stream, magic 0x"+Integer.toHexString( magic )+", version "+version);
+        }
+    }
+
+    public Frame read(DataInputStream in) throws IOException
+    {
+        final byte type = in.readByte();
+        final long sequence = in.readLong();
+        final int bodyCount = in.readInt();
+        final int compressedLength = in.readInt();
+
+        if ( type != FrameEncoder.FRAME_KEY && type != FrameEncoder.FRAME_DELTA ) {
+            throw new IOException("Unknown frame type "+type);
+        }
+        if ( bodyCount < 0 || bodyCount > Integer.MAX_VALUE / 6 || compressedLength < 0 ) {
+            throw new IOException("Corrupted frame "+sequence+", "+bodyCount+" bodies, "+compressedLength+" bytes");
+        }
+        if ( compressed.length < compressedLength ) {
+            compressed = new byte[ compressedLength ];
+        }
+        in.readFully( compressed , 0 , compressedLength );
+        bytesRead += 1+8+4+4+compressedLength;
+
+        // key frames hold two 16-bit coordinates per body, delta frames two varints of at most 3 bytes each
+        final int maxRawLength = bodyCount * ( type == FrameEncoder.FRAME_KEY ? 4 : 6 );
+        if ( raw.length < maxRawLength ) {
+            raw = new byte[ maxRawLength ];
+        }
+        inflater.reset();
+        inflater.setInput( compressed , 0 , compressedLength );
+        rawLength = 0;
+        try {
+            while ( ! inflater.finished() )
+            {
+                if ( rawLength == maxRawLength && inflater.inflate( overflow ) > 0 ) {
+                    throw new IOException("Frame "+sequence+" holds more data than expected for "+bodyCount+" bodies");
+                }
+                final int inflated = inflater.inflate( raw , rawLength , maxRawLength - rawLength );
+                if ( inflated == 0 && ! inflater.finished() && ( inflater.needsInput() || inflater.needsDictionary() ) ) {
+                    throw new IOException("Truncated frame "+sequence);
+                }
+                rawLength += inflated;
+            }
+        }
+        catch (DataFormatException e) {
+            throw new IOException("Corrupted frame "+sequence,e);
+        }
+        if ( type == FrameEncoder.FRAME_KEY && rawLength != maxRawLength ) {
+            throw new IOException("Key frame "+sequence+" has "+rawLength+" bytes, expected "+maxRawLength);
+        }
+
+        final char[] x = new char[ bodyCount ];
+        final char[] y = new char[ bodyCount ];
+        rawIdx = 0;
+        switch( type )
+        {
+            case FrameEncoder.FRAME_KEY:
+                readRaw( x , bodyCount );
+                readRaw( y , bodyCount );
+                break;
+            case FrameEncoder.FRAME_DELTA:
+                if ( previous == null || previous.bodyCount != bodyCount ) {
+                    throw new IOException("Delta frame "+sequence+" does not match previous frame");
+                }
+                readDelta( previous.x , x , bodyCount );
+                readDelta( previous.y , y , bodyCount );
+                break;
+            default:
+                throw new IOException("Unknown frame type "+type);
+        }
+        if ( rawIdx != rawLength ) {
+            throw new IOException("Frame "+sequence+" has "+(rawLength-rawIdx)+" trailing bytes");
+        }
+        previous = new Frame( sequence , x , y , bodyCount );
+        return previous;
+    }
+
+    /**
+     * Returns the number of frame bytes read so far.
+     */
+    public long bytesRead() {
+        return bytesRead;
+    }
+
+    private void readRaw(char[] values,int count)
+    {
+        int idx = rawIdx;
+        for ( int i = 0 ; i < count ; i++ , idx += 2 ) {
+            values[i] = (char) ( ( ( raw[idx] & 0xff ) << 8 ) | ( raw[idx+1] & 0xff ) );
+        }
+        rawIdx = idx;
+    }
+
+    private void readDelta(char[] previous,char[] current,int count) throws IOException
+    {
+        int idx = rawIdx;
+        for ( int i = 0 ; i < count ; i++ )
+        {
+            int zigZag = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if ( idx >= rawLength || shift > 14 ) { // a delta of two 16-bit values needs at most 3 bytes
+                    throw new IOException("Malformed delta frame");
+                }
+                b = raw[idx++];
+                zigZag |= ( b & 0x7f ) << shift;
+                shift += 7;
+            } while ( ( b & 0x80 ) != 0 );
+            final int delta = ( zigZag >>> 1 ) ^ -( zigZag & 1 );
+            current[i] = (char) ( previous[i] + delta );
+        }
+        rawIdx = idx;
+    }
+}
@@ -0,0 +1,134 @@
+package de.codesourcery.nbody;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+/**
+ * Writes {@link Frame}s to a stream.
+ *
+ * The first frame (and every frame whose body count differs from the previous one) is sent
+ * as a key frame holding the raw 16-bit coordinates. All other frames are sent as the
+ * difference to the frame previously written by this encoder, each delta zig-zag encoded as
+ * a variable-length integer so that slow-moving bodies take up a single byte. The resulting
+ * bytes get deflated.
+ *
+ * Wire format of a frame:
+ * <pre>
+ * byte    type (FRAME_KEY or FRAME_DELTA)
+ * long    sequence number
+ * int     body count
+ * int     length of compressed payload
+ * byte[]  compressed payload (all X coordinates followed by all Y coordinates)
+ * </pre>
+ *
+ * Instances are not thread-safe, each client connection uses its own encoder.
+ */
+public final class FrameEncoder
+{
+    public static final int MAGIC = 0x4e424459; // 'NBDY'
+    public static final int VERSION = 1;
+
+    public static final byte FRAME_KEY = 0;
+    public static final byte FRAME_DELTA = 1;
+
+    private final Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+
+    private byte[] raw = new byte[0];
+    private byte[] compressed = new byte[1024];
+    private int rawLength;
+
+    private Frame previous;
+
+    public void writeHeader(DataOutputStream out) throws IOException
+    {
+        out.writeInt( MAGIC );
+        out.writeInt( VERSION );
+        out.flush();
+    }
+
+    /**
+     * Writes a frame.
+     *
+     * @return number of bytes written
+     */
+    public int write(Frame frame,DataOutputStream out) throws IOException
+    {
+        final byte type;
+        rawLength = 0;
+        if ( previous == null || previous.bodyCount != frame.bodyCount )
+        {
+            type = FRAME_KEY;
+            ensureCapacity( frame.bodyCount * 4 );
+            writeRaw( frame.x , frame.bodyCount );
+            writeRaw( frame.y , frame.bodyCount );
+        }
+        else
+        {
+            type = FRAME_DELTA;
+            ensureCapacity( frame.bodyCount * 6 );
+            writeDelta( previous.x , frame.x , frame.bodyCount );
+            writeDelta( previous.y , frame.y , frame.bodyCount );
+        }
+
+        deflater.reset();
+        deflater.setInput( raw , 0 , rawLength );
+        deflater.finish();
+        int compressedLength = 0;
+        while ( ! deflater.finished() )
+        {
+            if ( compressedLength == compressed.length ) {
+                final byte[] tmp = new byte[ compressed.length*2 ];
+                System.arraycopy( compressed , 0 , tmp , 0 , compressedLength );
+                compressed = tmp;
+            }
+            compressedLength += deflater.deflate( compressed , compressedLength , compressed.length - compressedLength );
+        }
+
+        out.writeByte( type );
+        out.writeLong( frame.sequence );
+        out.writeInt( frame.bodyCount );
+        out.writeInt( compressedLength );
+        out.write( compressed , 0 , compressedLength );
+        out.flush();
+
+        previous = frame;
+        return 1+8+4+4+compressedLength;
+    }
+
+    private void ensureCapacity(int size)
+    {
+        if ( raw.length < size ) {
+            raw = new byte[ size ];
+        }
+    }
+
+    private void writeRaw(char[] values,int count)
+    {
+        int idx = rawLength;
+        for ( int i = 0 ; i < count ; i++ )
+        {
+            final char value = values[i];
+            raw[idx++] = (byte) ( value >>> 8 );
+            raw[idx++] = (byte) value;
+        }
+        rawLength = idx;
+    }
+
+    private void writeDelta(char[] previous,char[] current,int count)
+    {
+        int idx = rawLength;
+        for ( int i = 0 ; i < count ; i++ )
+        {
+            final int delta = (short) ( current[i] - previous[i] ); // wraps around, decoder does the same
+            int zigZag = ( delta << 1 ) ^ ( delta >> 31 );
+            while ( ( zigZag & ~0x7f ) != 0 )
+            {
+                raw[idx++] = (byte) ( ( zigZag & 0x7f ) | 0x80 );
+                zigZag >>>= 7;
+            }
+            raw[idx++] = (byte) zigZag;
+        }
+        rawLength = idx;
+    }
+}
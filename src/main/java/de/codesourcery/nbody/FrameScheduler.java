@@ -0,0 +1,117 @@
+package de.codesourcery.nbody;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the simulation and rendering.
+ *
+ * In {@link Mode#FIXED_RATE} mode one simulation step and one render request happen per frame and the
+ * scheduler thread parks until the next frame is due. In {@link Mode#UNTHROTTLED} mode the simulation is advanced
+ * as fast as possible and rendering is requested at most once per frame period.
+ *
+ * While paused the scheduler thread blocks and uses no CPU at all.
+ */
+public final class FrameScheduler
+{
+    public enum Mode
+    {
+        FIXED_RATE,
+        UNTHROTTLED
+    }
+
+    private final Mode mode;
+    private final long frameNanos;
+    private final Runnable step;
+    private final Runnable render;
+
+    private final Object LOCK = new Object();
+    private boolean running = true; // guarded by LOCK
+
+    /**
+     * Create scheduler.
+     *
+     * @param mode scheduling mode
+     * @param fps target frame rate
+     * @param step advances the simulation by one step
+     * @param render requests rendering of the current state, must not block
+     */
+    public FrameScheduler(Mode mode,int fps,Runnable step,Runnable render)
+    {
+        this.mode = mode;
+        this.frameNanos = 1_000_000_000L / fps;
+        this.step = step;
+        this.render = render;
+    }
+
+    public boolean isRunning()
+    {
+        synchronized( LOCK ) {
+            return running;
+        }
+    }
+
+    public void setRunning(boolean running)
+    {
+        synchronized( LOCK )
+        {
+            this.running = running;
+            LOCK.notifyAll();
+        }
+    }
+
+    /**
+     * Runs the scheduler on the calling thread, never returns.
+     */
+    public void run()
+    {
+        long nextFrame = System.nanoTime();
+        while ( true )
+        {
+            if ( awaitRunning() ) {
+                nextFrame = System.nanoTime(); // don't try to catch up on frames missed while paused
+            }
+
+            step.run();
+            if ( mode == Mode.FIXED_RATE )
+            {
+                render.run();
+                nextFrame += frameNanos;
+                long delay;
+                while ( ( delay = nextFrame - System.nanoTime() ) > 0 ) {
+                    LockSupport.parkNanos( delay );
+                }
+                if ( -delay > frameNanos ) {
+                    nextFrame = System.nanoTime(); // we're falling behind, just carry on at the speed we can manage
+                }
+            }
+            else
+            {
+                final long now = System.nanoTime();
+                if ( now - nextFrame >= 0 )
+                {
+                    render.run();
+                    nextFrame = now + frameNanos;
+                }
+            }
+        }
+    }
+
+    // returns whether we had to wait
+    private boolean awaitRunning()
+    {
+        synchronized( LOCK )
+        {
+            boolean waited = false;
+            while ( ! running )
+            {
+                waited = true;
+                try {
+                    LOCK.wait();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            return waited;
+        }
+    }
+}
@@ -10,14 +10,15 @@ import java.awt.GridBagLayout;
 import java.awt.Label;
 import java.awt.TextField;
 import java.awt.Toolkit;
-import java.util.Random;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.JFrame;
 import javax.swing.JPanel;
@@ -40,22 +41,28 @@ public class Main
 
     public static final int FPS = 60;
     
-    private static final Random rnd = new Random(0xdeadbeef);
-
-    public final BHTree thetree = new BHTree(UNIVERSE_BOUNDS);
+    public static final double TIME_STEP = 1e11;
+    
+    public static final double ZOOM_STEP = 1.25; // zoom factor per mouse wheel notch
+    
+    public static final double LOD_PIXEL_THRESHOLD = 1; // tree nodes smaller than this many pixels are drawn as a single point
     
+    public static final long SEED = 0xdeadbeef;
+
+    public final Simulation simulation;
     public final Bodies bodies;
-    public final int[] bodiesToProcess;
+    public final BHTree thetree;
     
     private final int threadCount;
-    private final ExecutorService threadPool;    
     
-    public volatile boolean simulationRunning=true;
+    public FrameScheduler.Mode frameMode = FrameScheduler.Mode.FIXED_RATE;
+    private FrameScheduler scheduler;
+    
+    public SnapshotServer snapshotServer; // optional, null if disabled
 
-    public volatile int numBodies;
-    public final TextField bodyCountInput = new TextField( Integer.toString(this.numBodies) ,5);
+    private TextField bodyCountInput; // created lazily so we can run without a display
     
-    protected final Object REPAINT_LOCK = new Object();
+    private final AtomicBoolean repaintPending = new AtomicBoolean(); // avoid flooding the Swing event queue with repaint requests
 
     private final JPanel canvas = new JPanel()
     {
@@ -65,18 +72,73 @@ public class Main
         
         private double stepX,stepY;
         
+        // viewport center (world coordinates) and zoom factor, only accessed by the Swing EDT
+        private double viewX,viewY;
+        private double zoom = 1;
+        
+        private int dragX,dragY;
+        private int pointsDrawn;
+        
         final PointsVisitor<Graphics> renderVisitor = new PointsVisitor<Graphics>()
         {
             public void visit(double x, double y,Graphics g) 
             {
-                if ( UNIVERSE_BOUNDS.contains( x , y ) ) {
-                    final int px = (int) Math.round( x * stepX );
-                    final int py = (int) Math.round( y * stepY );
-                    g.fillRect( px - 2 , py - 2 , 4,4 ); 
-                }
+                final int px = (int) Math.round( (x - viewX) * stepX );
+                final int py = (int) Math.round( (y - viewY) * stepY );
+                g.fillRect( px - 2 , py - 2 , 4,4 ); 
+                pointsDrawn++;
             }
         };          
         
+        {
+            addMouseWheelListener( ev -> 
+            {
+                final double oldZoom = zoom;
+                zoom = Math.max( 1 , zoom * Math.pow( ZOOM_STEP , -ev.getPreciseWheelRotation() ) );
+                
+                // keep world point under the mouse cursor fixed
+                final double dx = ev.getX() - getWidth()/2;
+                final double dy = ev.getY() - getHeight()/2;
+                final double scaleX = (getWidth()/2) / UNIVERSE_SIZE;
+                final double scaleY = (getHeight()/2) / UNIVERSE_SIZE;
+                viewX += dx / (scaleX*oldZoom) - dx / (scaleX*zoom);
+                viewY += dy / (scaleY*oldZoom) - dy / (scaleY*zoom);
+                repaint();
+            });
+            
+            final MouseAdapter dragListener = new MouseAdapter() 
+            {
+                @Override
+                public void mousePressed(MouseEvent e) 
+                {
+                    dragX = e.getX();
+                    dragY = e.getY();
+                }
+                
+                @Override
+                public void mouseDragged(MouseEvent e) 
+                {
+                    viewX -= (e.getX() - dragX) / stepX;
+                    viewY -= (e.getY() - dragY) / stepY;
+                    dragX = e.getX();
+                    dragY = e.getY();
+                    repaint();
+                }
+                
+                @Override
+                public void mouseClicked(MouseEvent e) 
+                {
+                    if ( e.getClickCount() == 2 ) { // reset view
+                        viewX = viewY = 0;
+                        zoom = 1;
+                        repaint();
+                    }
+                }
+            };
+            addMouseListener( dragListener );
+            addMouseMotionListener( dragListener );
+        }
+        
         @Override
         protected void paintComponent(Graphics g)
         {
@@ -87,17 +149,24 @@ public class Main
             final int centerX = getWidth()/2;
             final int centerY = getHeight()/2;
        
-            stepX = centerX / UNIVERSE_SIZE;
-            stepY = centerY / UNIVERSE_SIZE;
+            stepX = zoom * centerX / UNIVERSE_SIZE;
+            stepY = zoom * centerY / UNIVERSE_SIZE;
+            
+            final BoundingBox viewport = new BoundingBox( viewX - centerX / stepX , viewY - centerY / stepY , 
+                                                          viewX + centerX / stepX , viewY + centerY / stepY );
+            
+            // tree nodes smaller than this (in world coordinates) get rendered as a single point
+            final double minNodeSize = LOD_PIXEL_THRESHOLD / Math.max( stepX , stepY );
             
             g.setColor(Color.GREEN);
             
+            pointsDrawn = 0;
             try 
             {
                 g.translate(centerX,centerY); // Originally the origin is in the top right. Put it in its normal place
                 synchronized( bodies ) 
                 {
-                    bodies.visit( numBodies , renderVisitor ,g );
+                    thetree.visit( viewport , minNodeSize , bodies , renderVisitor , g );
                 }
             } finally {
                 g.translate(-centerX,-centerY);
@@ -116,29 +185,88 @@ public class Main
                 totalElapsedSeconds = 0;
             }
             g.setColor(Color.BLACK);
-            g.drawString("FPS: "+avgFps+" (rendering: "+(time-renderStart)+" ms)",15,15);
+            g.drawString("FPS: "+avgFps+" (rendering: "+(time-renderStart)+" ms, "+simulation.numBodies+" bodies, "+( simulation.mergeRadius > 0 ? simulation.getMergeCount()+" merged, " : "" )+pointsDrawn+" points, zoom: "+String.format("%.1f",zoom)+"x)",15,15);
             
-            synchronized ( REPAINT_LOCK ) {
-                REPAINT_LOCK.notifyAll();
-            }
+            repaintPending.set( false );
         }
     };
 
-    public static void main(String[] args) 
+    public static void main(String[] args) throws IOException
     {
-        int threadCount = Runtime.getRuntime().availableProcessors();
+        if ( args.length > 0 && args[0].equalsIgnoreCase("--ensemble") ) {
+            Ensemble.main( Arrays.copyOfRange( args , 1 , args.length ) );
+            return;
+        }
+
+        int threadCount = -1;
         boolean benchmark = false;
+        boolean tune = false;
+        boolean saveTuning = false;
+        double maxForceError = 0;
+        File tuningFile = TuningParameters.DEFAULT_FILE;
+        boolean headless = false;
+        boolean unthrottled = false;
+        int serverPort = -1;
         int bodies =30000;
+        int diagnosticsInterval = 0;
+        double mergeRadius = 0;
+        String diagnosticsFile = null;
+        String recordFile = null;
+        String tracers = "1000";
         for ( int i = 0 ; i < args.length ; i++ ) {
             switch( args[i].toLowerCase() )
             {
                 case "--benchmark":
                     benchmark = true;
                     break;
+                case "--tune":
+                    tune = true;
+                    break;
+                case "--tune-save":
+                    tune = saveTuning = true;
+                    break;
+                case "--tune-max-error":
+                    maxForceError = Double.parseDouble( args[i+1] );
+                    i++;
+                    break;
+                case "--tuning-file":
+                    tuningFile = new File( args[i+1] );
+                    i++;
+                    break;
+                case "--unthrottled":
+                    unthrottled = true;
+                    break;
+                case "--headless":
+                    headless = true;
+                    break;
+                case "--serve":
+                    serverPort = Integer.parseInt( args[i+1] );
+                    i++;
+                    break;
                 case "--bodies":
                     bodies = Integer.parseInt( args[i+1] );
                     i++;
                     break;
+                case "--diagnostics":
+                    diagnosticsInterval = Integer.parseInt( args[i+1] );
+                    i++;
+                    break;
+                case "--merge-radius":
+                    mergeRadius = Double.parseDouble( args[i+1] );
+                    i++;
+                    break;
+                case "--diagnostics-out":
+                    diagnosticsFile = args[i+1];
+                    i++;
+                    break;
+                case "--record":
+                    recordFile = args[i+1];
+                    i++;
+                    break;
+                case "--tracers":
+                    tracers = args[i+1];
+                    i++;
+                    break;
                 default:
                     if ( args[i].matches( "^[0-9]+$" ) ) {
                         threadCount = Integer.parseInt( args[i] );
@@ -146,47 +274,98 @@ public class Main
             }
         }
         
-        new Main( threadCount , bodies ).run( benchmark );
-    }
-
-    public Main(int threadCount,int bodyCount) 
-    {
-        this.threadCount = threadCount;
-        this.numBodies = bodyCount;
-        bodyCountInput.setText( Integer.toString( bodyCount ) );
-        
-        bodies = new Bodies( bodyCount );
-        bodiesToProcess = new int[ bodyCount ];
+        TuningParameters parameters = new TuningParameters();
+        try 
+        {
+            if ( tune ) 
+            {
+                parameters = new AutoTuner( bodies , 20 , maxForceError ).tune();
+                if ( saveTuning ) {
+                    parameters.save( tuningFile );
+                    System.out.println("Tuning parameters saved to "+tuningFile.getAbsolutePath());
+                }
+            } 
+            else if ( tuningFile.exists() ) 
+            {
+                parameters = TuningParameters.load( tuningFile );
+                System.out.println("Using tuning parameters from "+tuningFile.getAbsolutePath()+": "+parameters);
+                if ( parameters.bodyCount > 0 && parameters.bodyCount != bodies ) {
+                    System.err.println("WARNING: Tuning parameters were chosen for "+parameters.bodyCount+" bodies but simulating "+bodies+", consider re-running with --tune-save");
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException( "Failed to access tuning parameters file "+tuningFile , e );
+        }
+        if ( threadCount > 0 ) {
+            parameters.threadCount = threadCount;
+        }
         
-        final BlockingQueue<Runnable> workQueue = new ArrayBlockingQueue<>( threadCount+1);
-
-        final ThreadFactory threadFactory = new ThreadFactory() {
-
-            @Override
-            public Thread newThread(Runnable r) {
-                final Thread t = new Thread(r);
-                t.setDaemon( true );
-                return t;
+        final Main main = new Main( parameters , bodies );
+        if ( diagnosticsInterval > 0 ) 
+        {
+            try {
+                final PrintStream out = diagnosticsFile == null ? System.out : new PrintStream( new FileOutputStream( diagnosticsFile ) , true );
+                main.simulation.diagnostics = new Diagnostics( diagnosticsInterval , out );
+            } catch (FileNotFoundException e) {
+                throw new RuntimeException( "Failed to open diagnostics output file "+diagnosticsFile , e );
+            }
+        }
+        main.simulation.mergeRadius = mergeRadius;
+        if ( recordFile != null )
+        {
+            final int[] indices = TrajectoryRecorder.parseTracers( tracers , bodies );
+            try {
+                main.simulation.recorder = new TrajectoryRecorder( new File( recordFile ) , indices );
+            } catch (IOException e) {
+                throw new RuntimeException( "Failed to open trajectory file "+recordFile , e );
+            }
+            final TrajectoryRecorder recorder = main.simulation.recorder;
+            Runtime.getRuntime().addShutdownHook( new Thread( () ->
+            {
+                try {
+                    synchronized( main.bodies ) { // don't close while a step is being recorded
+                        recorder.close();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+        }
+        if ( serverPort != -1 ) 
+        {
+            try {
+                main.snapshotServer = new SnapshotServer( serverPort , FPS );
+            } catch (IOException e) {
+                throw new RuntimeException( "Failed to start snapshot server on port "+serverPort , e );
             }
-        };
-        threadPool = new ThreadPoolExecutor(threadCount, threadCount , 10 , TimeUnit.MINUTES, workQueue, threadFactory, new ThreadPoolExecutor.CallerRunsPolicy() );
+            main.snapshotServer.start();
+        }
+        if ( unthrottled ) {
+            main.frameMode = FrameScheduler.Mode.UNTHROTTLED;
+        }
+        main.run( benchmark , headless );
     }
 
-    public void run(boolean benchmark)
+    public Main(TuningParameters parameters,int bodyCount) 
     {
-        final JFrame frame = new JFrame("n-body");
-        frame.setPreferredSize( INITIAL_CANVAS_SIZE );
-        frame.setDefaultCloseOperation( JFrame.EXIT_ON_CLOSE );
+        this.threadCount = parameters.threadCount;
+        this.simulation = new Simulation( parameters , bodyCount , SEED , TIME_STEP , Simulation.newThreadPool( threadCount ) );
+        this.bodies = simulation.bodies;
+        this.thetree = simulation.thetree;
+    }
 
-        createBodies(this.numBodies);
+    public void run(boolean benchmark,boolean headless)
+    {
+        simulation.createBodies( simulation.numBodies );
+        simulation.buildTree();
 
         if ( benchmark )
         {
-            System.out.println("Running benchmark with "+threadCount+" threads and "+numBodies+" bodies ...");
+            System.out.println("Running benchmark with "+threadCount+" threads and "+simulation.numBodies+" bodies ...");
             final long start = System.currentTimeMillis();
             final int loops = 1000;
             for ( int i = 0 ; i < loops ; i++ ) {
-                advanceSimulation();
+                simulation.advanceSimulation();
             }
             long now = System.currentTimeMillis();
             long elapsed = now - start;
@@ -194,19 +373,35 @@ public class Main
             System.exit(0);;
         }
 
+        if ( headless ) 
+        {
+            System.out.println("Running headless with "+threadCount+" threads and "+simulation.numBodies+" bodies ...");
+            headlessLoop();
+            return;
+        }
+        
+        final JFrame frame = new JFrame("n-body");
+        frame.setPreferredSize( INITIAL_CANVAS_SIZE );
+        frame.setDefaultCloseOperation( JFrame.EXIT_ON_CLOSE );
+
+        this.scheduler = new FrameScheduler( frameMode , FPS , this::step , this::requestRepaint );
+        
+        this.bodyCountInput = new TextField( Integer.toString( simulation.numBodies ) ,5);
         this.bodyCountInput.addActionListener( ev -> setup() );
         final Button restartButton=new Button("Restart");
+        final Button stopButton =new Button("Stop");
         restartButton.addActionListener(ev -> 
         {
             setup();
-            simulationRunning=true;
+            stopButton.setLabel( "Stop" );
+            scheduler.setRunning( true );
         });
 
-        final Button stopButton =new Button("Stop");
         stopButton.addActionListener( ev -> 
         {
-            stopButton.setLabel( simulationRunning ? "Run" : "Stop" );
-            simulationRunning = !simulationRunning;
+            final boolean running = scheduler.isRunning();
+            stopButton.setLabel( running ? "Run" : "Stop" );
+            scheduler.setRunning( ! running );
         });
 
         final JPanel toolbar = new JPanel();
@@ -236,39 +431,36 @@ public class Main
         frame.pack();
         frame.setVisible( true );        
 
-        mainLoop();
+        scheduler.run();
     }
 
-    private void mainLoop() 
+    private void step() 
     {
-        float elapsedMillis = 1000/FPS;
-        long previous = System.nanoTime();
-        while ( true ) 
-        {
-            final long now = System.nanoTime();
-            elapsedMillis += (now - previous)/1000000f;
-            previous = now;
-            if ( elapsedMillis >= 1000/FPS ) 
-            {
-                elapsedMillis = 0;
-                synchronized( bodies ) // hold lock to avoid having the Swing EDT interfere while we're updating the simulation
-                {                
-                    if (simulationRunning) 
-                    {
-                        advanceSimulation();
-                    }
-                }     
-                synchronized ( REPAINT_LOCK ) // wait for repaint() to finish , otherwise we might fill-up the Swing event queue and cause sluggish UI behaviour 
-                {
-                    try 
-                    {
-                        canvas.repaint();
-                        REPAINT_LOCK.wait();
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }                
-            }
+        synchronized( bodies ) // hold lock to avoid having the Swing EDT interfere while we're updating the simulation
+        {                
+            simulation.advanceSimulation();
+            publishSnapshot();
+        }     
+    }
+    
+    private void requestRepaint() 
+    {
+        if ( repaintPending.compareAndSet( false , true ) ) {
+            canvas.repaint();
+        }
+    }
+    
+    private void headlessLoop() 
+    {
+        while ( true ) {
+            step();
+        }
+    }
+    
+    private void publishSnapshot() 
+    {
+        if ( snapshotServer != null ) {
+            snapshotServer.publish( bodies , simulation.numBodies );
         }
     }
     
@@ -280,107 +472,11 @@ public class Main
             if (value > bodies.maxBodies ) {
                 bodyCountInput.setText( Integer.toString( bodies.maxBodies ) );
             } else {
-                numBodies = value;
+                simulation.numBodies = value;
             }
-            createBodies( numBodies );
+            simulation.createBodies( simulation.numBodies );
+            simulation.buildTree();
         }
+        canvas.repaint();
     }
-
-    //Initialize N bodies with random positions and circular velocities
-    public void createBodies(int count)
-    {
-        for (int i = 0; i < count; i++)
-        {
-            final double px = UNIVERSE_SIZE*exp(-1.8)*(.5-rnd.nextDouble());
-            final double py = UNIVERSE_SIZE*exp(-1.8)*(.5-rnd.nextDouble());
-            final double magv = circlev(px,py);
-
-            final double absangle = Math.atan(Math.abs(py/px));
-            final double thetav= Math.PI/2-absangle;
-            double vx   = -1*Math.signum(py)*Math.cos(thetav)*magv;
-            double vy   = Math.signum(px)*Math.sin(thetav)*magv;
-            
-            if (rnd.nextDouble() <=.5) { // randomly flip rotation (clock-wise/counter-clock wise) 
-                vx=-vx;
-                vy=-vy;
-            }
-
-            final double mass = 1e20 + Math.random()*Bodies.SOLAR_MASS*10;
-            this.bodies.set(i,px, py, vx, vy, mass);
-        }
-
-        // Put the central mass in
-        this.bodies.set(0,0,0,0,0,1e6*Bodies.SOLAR_MASS); // put a heavy body in the center
-    }
-
-    //the bodies are initialized in circular orbits around the central mass.
-    //This is just some physics to do that
-    public static double circlev(double rx, double ry)
-    {
-        final double distToCenter=Math.sqrt(rx*rx+ry*ry);
-        final double numerator=(6.67e-11)*1e6*Bodies.SOLAR_MASS;
-        return Math.sqrt(numerator/distToCenter);
-    }    
-
-    public static double exp(double lambda) {
-        return -Math.log(1 - rnd.nextDouble()) / lambda;
-    }    
-
-    // BH algorithm
-    public int advanceSimulation()
-    {
-        bodies.resetTempBuffer();
-        thetree.clear();
-
-        // gather bodies still on screen and add them to the tree
-        final int[] toProcess = this.bodiesToProcess;
-        int toProcessCount = 0;
-        for (int i = 0; i < numBodies; i++)
-        {
-            if ( bodies.isBodyInRegion( i , UNIVERSE_BOUNDS ) )
-            {
-                thetree.insert( i , this.bodies );
-                toProcess[toProcessCount++] = i;
-            }
-        }
-
-        // update the forces, traveling recursively through the tree   
-        final int bodiesPerSlice = toProcessCount / threadCount;
-
-        final CountDownLatch latch = new CountDownLatch( threadCount );
-        for ( int sliceIdx = 0 ; sliceIdx < threadCount ; sliceIdx++ )
-        {
-            final int start= sliceIdx * bodiesPerSlice;
-            final int end = sliceIdx == threadCount-1 ? toProcessCount : (sliceIdx+1) * bodiesPerSlice;
-
-            threadPool.execute( () -> 
-            {
-                try 
-                {
-                    for (int idx = start ; idx < end ; idx++)
-                    {
-                        final int i = toProcess[idx];
-                        synchronized(bodies.LOCKS[i]) 
-                        {
-                            bodies.resetForce( i );
-                            thetree.updateForce(i,bodies);
-                        }
-                    }    
-                } finally {
-                    latch.countDown();
-                }
-            });
-        }
-        try {
-            latch.await(); // wait for all threads to finish before updating the positions
-        } 
-        catch (InterruptedException e) { e.printStackTrace(); }
-
-        //Calculate the new positions on a time step dt (1e11 here)
-        for ( int i = 0 ; i < toProcessCount ; i++ ) {
-            final int idx = toProcess[i]; 
-            bodies.updatePosition( idx , 1e11 );
-        }
-        return toProcessCount;
-    }    
-}
\ No newline at end of file
+}
@@ -0,0 +1,329 @@
+package de.codesourcery.nbody;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single n-body simulation.
+ *
+ * Force calculation is split into slices that are processed by the thread invoking {@link #advanceSimulation()}
+ * plus up to <code>threadCount-1</code> helper tasks submitted to the thread pool. Slices are claimed
+ * dynamically, so the calling thread never waits for a helper that has not started yet; this makes it safe
+ * to share one thread pool between many simulations (see {@link Ensemble}) and to call
+ * {@link #advanceSimulation()} from one of the pool's own threads.
+ *
+ * Initial code taken from http://physics.princeton.edu/~fpretori/Nbody.
+ *
+ * @author Frans Pretorius
+ * @author tobias.gierke@voipfuture.com
+ */
+public final class Simulation
+{
+    public static final int MERGE_INTERVAL = 10; // steps between merging close encounters, neighbor queries are about as expensive as the force pass
+
+    public final BHTree thetree = new BHTree(Main.UNIVERSE_BOUNDS);
+
+    public final Bodies bodies;
+    private final int[] bodiesToProcess;
+
+    private final Random rnd;
+    private final ExecutorService threadPool;
+
+    private final int threadCount;
+    private final int sliceCount;
+    private final double thetaSqrd;
+    private final double timeStep;
+
+    public volatile int numBodies;
+    private int treeBodyCount = -1; // number of bodies in the tree, -1 if the tree doesn't match the current positions
+
+    public Diagnostics diagnostics; // optional, null if disabled
+    public TrajectoryRecorder recorder; // optional, null if disabled
+    private long stepCount;
+
+    public double mergeRadius; // bodies closer than this get merged, 0 to disable
+    private static final int NOT_MERGED = -1;
+    private static final int ABSORBING = -2; // body already looked for neighbors during this merge pass and must not be merged into another one
+    private final int[] mergedInto; // index of the body each body got merged into, or NOT_MERGED / ABSORBING
+    private final int[] newIndex; // new index of each body after compaction
+    private final MergeVisitor mergeVisitor = new MergeVisitor();
+    private long mergeCount;
+
+    // merges all neighbors of the current body into it, bodies that absorbed others themselves are never merged
+    // (so merges don't chain beyond the merge radius and the central mass stays at index 0)
+    private final class MergeVisitor implements BHTree.BodyVisitor
+    {
+        public int current;
+        public int count;
+
+        @Override
+        public void visit(int body)
+        {
+            if ( mergedInto[ body ] == NOT_MERGED )
+            {
+                bodies.merge( current , body );
+                mergedInto[ body ] = current;
+                count++;
+            }
+        }
+    }
+
+    public Simulation(TuningParameters parameters,int bodyCount,long seed,double timeStep,ExecutorService threadPool)
+    {
+        this.threadCount = parameters.threadCount;
+        this.sliceCount = parameters.threadCount * parameters.slicesPerThread;
+        this.thetaSqrd = parameters.theta * parameters.theta;
+        this.timeStep = timeStep;
+        this.numBodies = bodyCount;
+        this.rnd = new Random( seed );
+        this.threadPool = threadPool;
+
+        bodies = new Bodies( bodyCount );
+        bodiesToProcess = new int[ bodyCount ];
+        mergedInto = new int[ bodyCount ];
+        newIndex = new int[ bodyCount ];
+        Arrays.fill( mergedInto , NOT_MERGED );
+    }
+
+    public static ExecutorService newThreadPool(int threadCount)
+    {
+        return newThreadPool( threadCount , new ArrayBlockingQueue<>( threadCount+1) );
+    }
+
+    public static ExecutorService newThreadPool(int threadCount,BlockingQueue<Runnable> workQueue)
+    {
+        final ThreadFactory threadFactory = new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r);
+                t.setDaemon( true );
+                return t;
+            }
+        };
+        return new ThreadPoolExecutor(threadCount, threadCount , 10 , TimeUnit.MINUTES, workQueue, threadFactory, new ThreadPoolExecutor.CallerRunsPolicy() );
+    }
+
+    // total number of bodies that have been merged into others
+    public long getMergeCount() {
+        return mergeCount;
+    }
+
+    //Initialize N bodies with random positions and circular velocities
+    public void createBodies(int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            final double px = Main.UNIVERSE_SIZE*exp(-1.8)*(.5-rnd.nextDouble());
+            final double py = Main.UNIVERSE_SIZE*exp(-1.8)*(.5-rnd.nextDouble());
+            final double magv = circlev(px,py);
+
+            final double absangle = Math.atan(Math.abs(py/px));
+            final double thetav= Math.PI/2-absangle;
+            double vx   = -1*Math.signum(py)*Math.cos(thetav)*magv;
+            double vy   = Math.signum(px)*Math.sin(thetav)*magv;
+
+            if (rnd.nextDouble() <=.5) { // randomly flip rotation (clock-wise/counter-clock wise)
+                vx=-vx;
+                vy=-vy;
+            }
+
+            final double mass = 1e20 + rnd.nextDouble()*Bodies.SOLAR_MASS*10;
+            this.bodies.set(i,px, py, vx, vy, mass);
+        }
+
+        // Put the central mass in
+        this.bodies.set(0,0,0,0,0,1e6*Bodies.SOLAR_MASS); // put a heavy body in the center
+        numBodies = count;
+        treeBodyCount = -1;
+        stepCount = 0;
+        mergeCount = 0;
+        if ( diagnostics != null ) {
+            diagnostics.reset();
+        }
+        if ( recorder != null )
+        {
+            recorder.restart();
+            recorder.record( 0 , 0 , bodies , count );
+        }
+    }
+
+    //the bodies are initialized in circular orbits around the central mass.
+    //This is just some physics to do that
+    public static double circlev(double rx, double ry)
+    {
+        final double distToCenter=Math.sqrt(rx*rx+ry*ry);
+        final double numerator=(6.67e-11)*1e6*Bodies.SOLAR_MASS;
+        return Math.sqrt(numerator/distToCenter);
+    }
+
+    private double exp(double lambda) {
+        return -Math.log(1 - rnd.nextDouble()) / lambda;
+    }
+
+    // gather bodies still on screen and add them to the tree
+    public int buildTree()
+    {
+        thetree.clear();
+
+        final int[] toProcess = this.bodiesToProcess;
+        int toProcessCount = 0;
+        for (int i = 0; i < numBodies; i++)
+        {
+            if ( bodies.isBodyInRegion( i , Main.UNIVERSE_BOUNDS ) )
+            {
+                thetree.insert( i , this.bodies );
+                toProcess[toProcessCount++] = i;
+            }
+        }
+        thetree.computeCenterOfMass( bodies );
+        treeBodyCount = toProcessCount;
+        return toProcessCount;
+    }
+
+    // merge bodies closer than mergeRadius, using the tree to find neighbors; returns the number of merged bodies
+    private int mergeCloseEncounters(int toProcessCount)
+    {
+        final double radiusSqrd = mergeRadius * mergeRadius;
+        final MergeVisitor visitor = this.mergeVisitor;
+        final int count = numBodies;
+        visitor.count = 0;
+        for ( int idx = 0 ; idx < toProcessCount ; idx++ )
+        {
+            final int i = bodiesToProcess[idx];
+            if ( mergedInto[i] == NOT_MERGED )
+            {
+                mergedInto[i] = ABSORBING;
+                visitor.current = i;
+                thetree.visitNeighbors( bodies.getX( i ) , bodies.getY( i ) , radiusSqrd , bodies , visitor );
+            }
+        }
+        if ( visitor.count > 0 ) {
+            compact();
+        }
+        Arrays.fill( mergedInto , 0 , count , NOT_MERGED );
+        return visitor.count;
+    }
+
+    // remove merged bodies, keeping the order of the remaining ones
+    private void compact()
+    {
+        final int count = numBodies;
+        int dst = 0;
+        for ( int src = 0 ; src < count ; src++ )
+        {
+            if ( mergedInto[src] >= 0 ) {
+                continue;
+            }
+            if ( src != dst ) {
+                bodies.copy( src , dst );
+            }
+            newIndex[src] = dst++;
+        }
+        numBodies = dst;
+
+        if ( recorder != null )
+        {
+            // merged bodies map to wherever the body they got merged into ended up
+            for ( int src = 0 ; src < count ; src++ )
+            {
+                if ( mergedInto[src] >= 0 ) {
+                    newIndex[src] = newIndex[ mergedInto[src] ];
+                }
+            }
+            recorder.remap( newIndex , count );
+        }
+    }
+
+    // BH algorithm, returns the number of bodies that got advanced
+    public int advanceSimulation()
+    {
+        final int[] toProcess = this.bodiesToProcess;
+        int toProcessCount = treeBodyCount >= 0 ? treeBodyCount : buildTree(); // tree is rebuilt at the end of every step
+
+        if ( mergeRadius > 0 && ( stepCount % MERGE_INTERVAL ) == 0 )
+        {
+            final int mergedBodies = mergeCloseEncounters( toProcessCount );
+            if ( mergedBodies > 0 )
+            {
+                mergeCount += mergedBodies;
+                toProcessCount = buildTree(); // indices changed
+            }
+        }
+
+        // update the forces, traveling recursively through the tree
+        final int sliceCount = this.sliceCount;
+        final int bodyCount = toProcessCount;
+        final int bodiesPerSlice = bodyCount / sliceCount;
+
+        final Diagnostics diagnostics = this.diagnostics != null && this.diagnostics.isDue( stepCount ) ? this.diagnostics : null;
+        if ( diagnostics != null ) {
+            diagnostics.begin( sliceCount );
+        }
+
+        final AtomicInteger nextSlice = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch( sliceCount );
+        final Runnable worker = () ->
+        {
+            int slice;
+            while ( ( slice = nextSlice.getAndIncrement() ) < sliceCount )
+            {
+                try
+                {
+                    final int start= slice * bodiesPerSlice;
+                    final int end = slice == sliceCount-1 ? bodyCount : (slice+1) * bodiesPerSlice;
+                    for (int idx = start ; idx < end ; idx++)
+                    {
+                        final int i = toProcess[idx];
+                        synchronized(bodies.LOCKS[i])
+                        {
+                            bodies.resetForce( i );
+                            if ( diagnostics == null ) {
+                                thetree.updateForce(i,bodies,thetaSqrd);
+                            } else {
+                                diagnostics.accumulate( slice , i , bodies , thetree.updateForceAndPotential(i,bodies,thetaSqrd) );
+                            }
+                        }
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            }
+        };
+        for ( int i = 1 ; i < threadCount ; i++ ) {
+            threadPool.execute( worker );
+        }
+        worker.run();
+        try {
+            latch.await(); // wait for all slices to finish before updating the positions
+        }
+        catch (InterruptedException e) { e.printStackTrace(); }
+
+        if ( diagnostics != null ) {
+            diagnostics.finish( stepCount , stepCount * timeStep , toProcessCount );
+        }
+        stepCount++;
+
+        //Calculate the new positions on a time step dt
+        for ( int i = 0 ; i < toProcessCount ; i++ ) {
+            final int idx = toProcess[i];
+            bodies.updatePosition( idx , timeStep );
+        }
+
+        // rebuild the tree from the new positions so that rendering sees a consistent state and the next step can reuse it
+        buildTree();
+
+        if ( recorder != null ) {
+            recorder.record( stepCount , stepCount * timeStep , bodies , numBodies );
+        }
+        return toProcessCount;
+    }
+}
@@ -0,0 +1,166 @@
+package de.codesourcery.nbody;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Streams snapshots of the simulation to remote viewers (see {@link SnapshotViewer}) over TCP.
+ *
+ * The simulation thread only quantizes the body positions into a {@link Frame} and hands it over,
+ * encoding and sending is done by one thread per client. A client that is still busy sending
+ * an older frame simply picks up the most recent one when it is done, skipping all frames
+ * published in the meantime. Slow clients therefore receive fewer frames but never stall
+ * the simulation or other clients.
+ */
+public final class SnapshotServer
+{
+    private final ServerSocket serverSocket;
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    private final long minPublishIntervalNanos;
+
+    private final Object FRAME_LOCK = new Object();
+    private Frame latest; // guarded by FRAME_LOCK
+
+    private long sequence;
+    private long lastPublish;
+
+    private final class Client implements Runnable
+    {
+        private final Socket socket;
+        private final FrameEncoder encoder = new FrameEncoder();
+
+        private long framesSent;
+        private long framesSkipped;
+        private long bytesSent;
+
+        public Client(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() , 64*1024 ) );
+                encoder.writeHeader( out );
+                long lastSequence = -1;
+                while ( true )
+                {
+                    final Frame frame = awaitFrame( lastSequence );
+                    if ( lastSequence != -1 ) {
+                        framesSkipped += frame.sequence - lastSequence - 1;
+                    }
+                    bytesSent += encoder.write( frame , out );
+                    framesSent++;
+                    lastSequence = frame.sequence;
+                }
+            }
+            catch (IOException e) {
+                // client disconnected
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finally
+            {
+                clients.remove( this );
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                System.out.println("Client "+socket.getRemoteSocketAddress()+" disconnected: "+framesSent+" frames sent, "+
+                        framesSkipped+" frames skipped, "+(bytesSent/1024)+" KB sent");
+            }
+        }
+    }
+
+    /**
+     * Create server.
+     *
+     * @param port TCP port to listen on
+     * @param maxFramesPerSecond upper bound on the number of frames published per second, frames published more often are dropped
+     */
+    public SnapshotServer(int port,int maxFramesPerSecond) throws IOException
+    {
+        this.serverSocket = new ServerSocket( port );
+        this.minPublishIntervalNanos = 1_000_000_000L / maxFramesPerSecond;
+    }
+
+    public void start()
+    {
+        final Thread acceptor = new Thread( () ->
+        {
+            while ( true )
+            {
+                try
+                {
+                    final Socket socket = serverSocket.accept();
+                    socket.setTcpNoDelay( true );
+                    System.out.println("Client connected: "+socket.getRemoteSocketAddress());
+                    final Client client = new Client( socket );
+                    clients.add( client );
+                    final Thread t = new Thread( client , "snapshot-client-"+socket.getRemoteSocketAddress() );
+                    t.setDaemon( true );
+                    t.start();
+                }
+                catch (IOException e)
+                {
+                    if ( serverSocket.isClosed() ) {
+                        return;
+                    }
+                    e.printStackTrace();
+                }
+            }
+        } , "snapshot-server" );
+        acceptor.setDaemon( true );
+        acceptor.start();
+        System.out.println("Snapshot server listening on port "+serverSocket.getLocalPort());
+    }
+
+    /**
+     * Publish the current body positions to all connected clients.
+     *
+     * Must be called by the simulation thread while the bodies are not being modified. Returns immediately
+     * if no clients are connected or the last frame was published less than 1/maxFramesPerSecond ago.
+     */
+    public void publish(Bodies bodies,int bodyCount)
+    {
+        if ( clients.isEmpty() ) {
+            return;
+        }
+        final long now = System.nanoTime();
+        if ( now - lastPublish < minPublishIntervalNanos ) {
+            return;
+        }
+        lastPublish = now;
+
+        final Frame frame = Frame.capture( sequence++ , bodies , bodyCount );
+        synchronized( FRAME_LOCK )
+        {
+            latest = frame;
+            FRAME_LOCK.notifyAll();
+        }
+    }
+
+    private Frame awaitFrame(long lastSequence) throws InterruptedException
+    {
+        synchronized( FRAME_LOCK )
+        {
+            while ( latest == null || latest.sequence == lastSequence ) {
+                FRAME_LOCK.wait();
+            }
+            return latest;
+        }
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
@@ -0,0 +1,136 @@
+package de.codesourcery.nbody;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+
+/**
+ * Test client for {@link SnapshotServer}.
+ *
+ * Renders received frames in a window or, when started with <code>--stats</code>, just prints
+ * frame rate and bandwidth statistics once per second.
+ */
+public class SnapshotViewer
+{
+    private final String host;
+    private final int port;
+
+    private volatile Frame current;
+
+    private long framesReceived;
+
+    private final JPanel canvas = new JPanel()
+    {
+        @Override
+        protected void paintComponent(Graphics g)
+        {
+            super.paintComponent(g);
+
+            final Frame frame = current;
+            if ( frame == null ) {
+                return;
+            }
+            final double scaleX = getWidth() / (double) Frame.MAX_COORDINATE;
+            final double scaleY = getHeight() / (double) Frame.MAX_COORDINATE;
+            g.setColor(Color.GREEN);
+            for ( int i = 0 ; i < frame.bodyCount ; i++ )
+            {
+                if ( frame.x[i] != Frame.OUTSIDE ) {
+                    final int px = (int) ( frame.x[i] * scaleX );
+                    final int py = (int) ( frame.y[i] * scaleY );
+                    g.fillRect( px - 2 , py - 2 , 4 , 4 );
+                }
+            }
+            g.setColor(Color.BLACK);
+            g.drawString("Frame: "+frame.sequence+" , bodies: "+frame.bodyCount,15,15);
+        }
+    };
+
+    public static void main(String[] args) throws Exception
+    {
+        String host = "localhost";
+        int port = 4711;
+        boolean statsOnly = false;
+        for ( int i = 0 ; i < args.length ; i++ )
+        {
+            switch( args[i].toLowerCase() )
+            {
+                case "--stats":
+                    statsOnly = true;
+                    break;
+                case "--port":
+                    port = Integer.parseInt( args[i+1] );
+                    i++;
+                    break;
+                default:
+                    host = args[i];
+            }
+        }
+        new SnapshotViewer( host , port ).run( statsOnly );
+    }
+
+    public SnapshotViewer(String host,int port)
+    {
+        this.host = host;
+        this.port = port;
+    }
+
+    public void run(boolean statsOnly) throws IOException
+    {
+        if ( ! statsOnly )
+        {
+            final JFrame frame = new JFrame("n-body viewer ("+host+":"+port+")");
+            frame.setPreferredSize( Main.INITIAL_CANVAS_SIZE );
+            frame.setDefaultCloseOperation( JFrame.EXIT_ON_CLOSE );
+            frame.getContentPane().add( canvas );
+            frame.pack();
+            frame.setVisible( true );
+        }
+
+        try ( Socket socket = new Socket( host , port ) )
+        {
+            final DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream() , 64*1024 ) );
+            final FrameDecoder decoder = new FrameDecoder();
+            decoder.readHeader( in );
+
+            long lastStats = System.currentTimeMillis();
+            long lastFrames = 0;
+            long lastBytes = 0;
+            while ( true )
+            {
+                final Frame frame;
+                try {
+                    frame = decoder.read( in );
+                } catch(EOFException e) {
+                    System.out.println("Server closed connection");
+                    return;
+                }
+                framesReceived++;
+                current = frame;
+                if ( ! statsOnly ) {
+                    SwingUtilities.invokeLater( canvas::repaint );
+                }
+
+                final long now = System.currentTimeMillis();
+                if ( now - lastStats >= 1000 )
+                {
+                    final long frames = framesReceived - lastFrames;
+                    final long bytes = decoder.bytesRead() - lastBytes;
+                    System.out.println("Frame "+frame.sequence+": "+frame.bodyCount+" bodies, "+frames+" frames/s, "+
+                            ( frames == 0 ? 0 : bytes / frames )+" bytes/frame ("+( frame.bodyCount*4 )+" bytes uncompressed)");
+                    lastStats = now;
+                    lastFrames = framesReceived;
+                    lastBytes = decoder.bytesRead();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package de.codesourcery.nbody;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Records position and velocity of selected (tracer) bodies after every simulation step.
+ *
+ * The simulation thread only copies the tracers' state into one of a fixed number of preallocated
+ * buffers, a background thread writes filled buffers to disk. If the writer can't keep up,
+ * the simulation thread blocks until a buffer becomes available again (and the time spent waiting
+ * is reported when the recorder is closed).
+ *
+ * File format (big-endian):
+ * <pre>
+ * int      magic ('NBTR')
+ * int      version
+ * int      number of tracers (n)
+ * int[n]   initial body index of each tracer
+ *
+ * followed by one record per step:
+ *
+ * long     step (0 for the initial state of a run)
+ * double   simulation time
+ * double[n] X
+ * double[n] Y
+ * double[n] VX
+ * double[n] VY
+ * </pre>
+ *
+ * When bodies get merged (see {@link Simulation#mergeRadius}) a tracer follows the body it got merged into.
+ * Every run starts with a record for step 0; when the bodies get re-created (Restart button) the tracers
+ * go back to their initial indices and a new step 0 record starts the next run in the same file.
+ * Values of tracers beyond the current number of bodies are recorded as NaN.
+ */
+public final class TrajectoryRecorder
+{
+    public static final int MAGIC = 0x4e425452; // 'NBTR'
+    public static final int VERSION = 1;
+
+    private static final int BUFFER_COUNT = 64;
+
+    private final int[] initialTracers;
+    private final int[] tracers;
+    private final FileChannel channel;
+    private final ByteBuffer writeBuffer;
+
+    private final BlockingQueue<Record> free;
+    private final BlockingQueue<Record> filled;
+    private final Thread writer;
+
+    private volatile IOException writeError;
+    private boolean closed;
+    private long records;
+    private long stallNanos;
+
+    private static final class Record
+    {
+        public long step;
+        public double time;
+        public final double[] data;
+
+        public Record(int tracerCount) {
+            this.data = new double[ tracerCount * 4 ];
+        }
+    }
+
+    private static final Record END_OF_STREAM = new Record(0);
+
+    public TrajectoryRecorder(File file,int[] tracers) throws IOException
+    {
+        this.initialTracers = tracers.clone();
+        this.tracers = tracers.clone();
+        this.channel = new FileOutputStream( file ).getChannel();
+        this.writeBuffer = ByteBuffer.allocateDirect( Math.max( 12 + tracers.length * 4 , 16 + tracers.length * 4 * 8 ) );
+
+        free = new ArrayBlockingQueue<>( BUFFER_COUNT );
+        filled = new ArrayBlockingQueue<>( BUFFER_COUNT + 1 );
+        for ( int i = 0 ; i < BUFFER_COUNT ; i++ ) {
+            free.add( new Record( tracers.length ) );
+        }
+
+        writeBuffer.putInt( MAGIC ).putInt( VERSION ).putInt( tracers.length );
+        for ( int tracer : tracers ) {
+            writeBuffer.putInt( tracer );
+        }
+        write();
+
+        writer = new Thread( this::drain , "trajectory-writer" );
+        writer.setDaemon( true );
+        writer.start();
+    }
+
+    /**
+     * Selects <code>count</code> tracers evenly spread over the first <code>bodyCount</code> bodies.
+     */
+    public static int[] evenlySpaced(int count,int bodyCount)
+    {
+        final int[] result = new int[ Math.min( count , bodyCount ) ];
+        for ( int i = 0 ; i < result.length ; i++ ) {
+            result[i] = (int) ( (long) i * bodyCount / result.length );
+        }
+        return result;
+    }
+
+    /**
+     * Parses a tracer selection, either a number of tracers to spread evenly across all bodies
+     * or a comma-separated list of body indices (use a trailing comma to select a single body, e.g. <code>5,</code>).
+     *
+     * @param spec tracer selection
+     * @param bodyCount total number of bodies
+     * @return distinct body indices
+     */
+    public static int[] parseTracers(String spec,int bodyCount)
+    {
+        if ( ! spec.contains(",") )
+        {
+            final int count = Integer.parseInt( spec.trim() );
+            if ( count < 1 ) {
+                throw new IllegalArgumentException("Number of tracers must be >= 1, got "+count);
+            }
+            return evenlySpaced( count , bodyCount );
+        }
+
+        final Set<Integer> indices = new LinkedHashSet<>();
+        for ( String part : spec.split(",") )
+        {
+            if ( part.trim().isEmpty() ) {
+                continue;
+            }
+            final int index = Integer.parseInt( part.trim() );
+            if ( index < 0 || index >= bodyCount ) {
+                throw new IllegalArgumentException("Tracer index "+index+" out of range, must be >= 0 and < "+bodyCount);
+            }
+            indices.add( index );
+        }
+        if ( indices.isEmpty() ) {
+            throw new IllegalArgumentException("No tracer indices in '"+spec+"'");
+        }
+        return indices.stream().mapToInt( Integer::intValue ).toArray();
+    }
+
+    /**
+     * Start a new run, tracers go back to their initial indices.
+     *
+     * Must be called after the bodies got re-created and before the initial state gets recorded.
+     */
+    public void restart()
+    {
+        System.arraycopy( initialTracers , 0 , tracers , 0 , tracers.length );
+    }
+
+    /**
+     * Record the current state of all tracers, calls must not overlap (callers hold the lock on the bodies).
+     *
+     * @param step step number, 0 for the initial state of a run
+     * @param time simulation time
+     * @param bodies bodies
+     * @param bodyCount current number of bodies
+     */
+    public void record(long step,double time,Bodies bodies,int bodyCount)
+    {
+        if ( closed ) {
+            return;
+        }
+        if ( writeError != null ) {
+            throw new RuntimeException("Writing trajectories failed",writeError);
+        }
+
+        Record record = free.poll();
+        if ( record == null )
+        {
+            final long start = System.nanoTime();
+            try {
+                record = free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            stallNanos += System.nanoTime() - start;
+        }
+        record.step = step;
+        record.time = time;
+        bodies.copyState( tracers , record.data );
+        for ( int i = 0 , count = tracers.length ; i < count ; i++ )
+        {
+            if ( tracers[i] >= bodyCount ) { // restarted with fewer bodies
+                record.data[ i ] = record.data[ i + count ] = record.data[ i + 2*count ] = record.data[ i + 3*count ] = Double.NaN;
+            }
+        }
+        filled.add( record );
+        records++;
+    }
+
+    /**
+     * Update tracer indices after bodies have been moved around.
+     *
+     * @param newIndex new index of every body, indexed by old index
+     * @param bodyCount number of bodies before they got moved
+     */
+    public void remap(int[] newIndex,int bodyCount)
+    {
+        for ( int i = 0 ; i < tracers.length ; i++ )
+        {
+            if ( tracers[i] < bodyCount ) {
+                tracers[i] = newIndex[ tracers[i] ];
+            }
+        }
+    }
+
+    /**
+     * Writes all pending records and closes the file.
+     */
+    public void close() throws IOException
+    {
+        if ( closed ) {
+            return;
+        }
+        closed = true;
+        filled.add( END_OF_STREAM );
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        System.out.println("Recorded "+records+" records of "+tracers.length+" tracers, simulation waited "+(stallNanos/1_000_000)+" ms for the writer");
+        if ( writeError != null ) {
+            throw writeError;
+        }
+    }
+
+    private void drain()
+    {
+        try
+        {
+            while ( true )
+            {
+                final Record record = filled.take();
+                if ( record == END_OF_STREAM ) {
+                    return;
+                }
+                if ( writeError == null )
+                {
+                    writeBuffer.putLong( record.step ).putDouble( record.time );
+                    writeBuffer.asDoubleBuffer().put( record.data );
+                    writeBuffer.position( writeBuffer.position() + record.data.length * 8 );
+                    try {
+                        write();
+                    } catch (IOException e) {
+                        writeError = e;
+                    }
+                }
+                free.add( record );
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write() throws IOException
+    {
+        writeBuffer.flip();
+        while ( writeBuffer.hasRemaining() ) {
+            channel.write( writeBuffer );
+        }
+        writeBuffer.clear();
+    }
+}
@@ -0,0 +1,106 @@
+package de.codesourcery.nbody;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Parameters that affect simulation throughput, either set on the command line,
+ * found by the {@link AutoTuner} or loaded from a properties file.
+ */
+public final class TuningParameters
+{
+    public static final double DEFAULT_THETA = 2; // BH opening criterion, nodes with size/distance below this get approximated
+
+    public static final File DEFAULT_FILE = new File( System.getProperty("user.home") , ".nbody-tuning.properties" );
+
+    public int threadCount = Runtime.getRuntime().availableProcessors();
+    public int slicesPerThread = 1; // how many chunks of work each thread gets per force pass
+    public double theta = DEFAULT_THETA;
+    public int bodyCount; // number of bodies the parameters were tuned for, 0 if unknown
+
+    public TuningParameters() {
+    }
+
+    public TuningParameters(TuningParameters other)
+    {
+        this.threadCount = other.threadCount;
+        this.slicesPerThread = other.slicesPerThread;
+        this.theta = other.theta;
+        this.bodyCount = other.bodyCount;
+    }
+
+    public static TuningParameters load(File file) throws IOException
+    {
+        final Properties props = new Properties();
+        try ( InputStream in = new FileInputStream( file ) ) {
+            props.load( in );
+        }
+        final TuningParameters result = new TuningParameters();
+        result.threadCount = getInt( props , "threadCount" , result.threadCount , 1 , file );
+        result.slicesPerThread = getInt( props , "slicesPerThread" , result.slicesPerThread , 1 , file );
+        result.theta = getTheta( props , result.theta , file );
+        result.bodyCount = getInt( props , "bodyCount" , 0 , 0 , file );
+        return result;
+    }
+
+    private static int getInt(Properties props,String key,int defaultValue,int minValue,File file) throws IOException
+    {
+        final String value = props.getProperty( key );
+        if ( value == null ) {
+            return defaultValue;
+        }
+        try
+        {
+            final int result = Integer.parseInt( value.trim() );
+            if ( result >= minValue ) {
+                return result;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IOException("Invalid value for '"+key+"' in "+file.getAbsolutePath()+": "+value+" (must be an integer >= "+minValue+")");
+    }
+
+    // theta <= 0 would never approximate any node and silently turn the simulation into O(n^2)
+    private static double getTheta(Properties props,double defaultValue,File file) throws IOException
+    {
+        final String value = props.getProperty( "theta" );
+        if ( value == null ) {
+            return defaultValue;
+        }
+        try
+        {
+            final double result = Double.parseDouble( value.trim() );
+            if ( result > 0 && ! Double.isInfinite( result ) ) {
+                return result;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IOException("Invalid value for 'theta' in "+file.getAbsolutePath()+": "+value+" (must be a number > 0)");
+    }
+
+    public void save(File file) throws IOException
+    {
+        final Properties props = new Properties();
+        props.setProperty( "threadCount" , Integer.toString( threadCount ) );
+        props.setProperty( "slicesPerThread" , Integer.toString( slicesPerThread ) );
+        props.setProperty( "theta" , Double.toString( theta ) );
+        if ( bodyCount > 0 ) {
+            props.setProperty( "bodyCount" , Integer.toString( bodyCount ) );
+        }
+        try ( OutputStream out = new FileOutputStream( file ) ) {
+            props.store( out , "n-body tuning parameters" );
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "threads: "+threadCount+", slices/thread: "+slicesPerThread+", theta: "+theta+( bodyCount > 0 ? ", tuned for "+bodyCount+" bodies" : "" );
+    }
+}